@@ -40,6 +40,18 @@ public class Action {
     return this.payload;
   }
 
+  /**
+   * Returns whether another action has the same semantic annotation and payload,
+   * e.g. the action with the same id in the action space of another environment
+   *
+   * @param other the other action, or null
+   * @return true if both actions invoke the same affordance with the same payload
+   */
+  public boolean matches(Action other) {
+    return other != null && this.actionTag.equals(other.actionTag)
+      && Arrays.equals(this.payloadTags, other.payloadTags) && Arrays.equals(this.payload, other.payload);
+  }
+
   public TDHttpRequest getRequest() {
     return this.request;
   }
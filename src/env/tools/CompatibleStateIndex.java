@@ -0,0 +1,247 @@
+package tools;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An inverted index that resolves substate descriptions to the codes of the
+ * compatible states of a state space.
+ *
+ * <p>
+ * For every value of every axis of the state space, the index holds a bitset
+ * of the states that have this value on this axis. A substate description is
+ * aligned to the first axis of the state, and is resolved by intersecting the
+ * bitsets of its elements. E.g., for the lab state
+ * [z1Level, z2Level, z1Light, z2Light, z1Blinds, z2Blinds, sunshine]:
+ * </p>
+ * <ul>
+ * <li> [3,3] is resolved to all the states described as [3,3,_,_,...,_]
+ * <li> [3,3,null,null,true,null,2] is resolved to all the states described as
+ * [3,3,_,_,1,_,2], i.e. a {@code null} element matches any value
+ * <li> [3,3,false,false,true,true,2] is resolved to the single state [3,3,0,0,1,1,2]
+ * </ul>
+ * <p>
+ * Elements can be given as numbers or as booleans, where {@code false} stands for
+ * the value 0 and {@code true} for the value 1. The results of the descriptions
+ * that give a value for exactly the first two axes, such as the goal
+ * descriptions [z1Level, z2Level] of the lab, are memoized in a table with one
+ * entry per pair of values. The results of the other valid descriptions are
+ * memoized in a least recently used cache of {@value #MEMO_CAPACITY} entries,
+ * keyed by the axis values of the description, so that e.g. [3,3,null,1] and
+ * [3.0,3,null,true] share an entry. The memo thus stays bounded whatever
+ * descriptions the agents supply.
+ * </p>
+ */
+public class CompatibleStateIndex {
+
+  /**
+   * The maximum number of descriptions other than the goal-shaped ones whose
+   * compatible states are memoized
+   */
+  public static final int MEMO_CAPACITY = 512;
+
+  private final StateCodec stateCodec;
+
+  /**
+   * The states that have a given value on a given axis, indexed by [axis][value]
+   */
+  private final BitSet[][] statesByAxisValue;
+
+  /**
+   * All the states of the state space
+   */
+  private final BitSet allStates;
+
+  /**
+   * The compatible states of the goal-shaped descriptions that have already
+   * been resolved, indexed by [value of axis 0 * radix of axis 1 + value of axis 1]
+   */
+  private final AtomicReferenceArray<List<Integer>> resolvedGoals;
+
+  /**
+   * The compatible states of the other descriptions that have been resolved
+   * recently, keyed by {@link #descriptionKey}, in the order of their use
+   */
+  private final Map<Long, List<Integer>> resolved = new LinkedHashMap<Long, List<Integer>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, List<Integer>> eldest) {
+      return size() > MEMO_CAPACITY;
+    }
+  };
+
+  /**
+   * Whether the keys of all the descriptions fit into a long
+   */
+  private final boolean keyable;
+
+  /**
+   * Builds the index for the state space of a state codec
+   *
+   * @param stateCodec the state codec
+   */
+  public CompatibleStateIndex(StateCodec stateCodec) {
+    this.stateCodec = stateCodec;
+    int stateCount = stateCodec.getStateCount();
+
+    this.statesByAxisValue = new BitSet[stateCodec.getAxisCount()][];
+    for (int axis = 0; axis < stateCodec.getAxisCount(); axis++) {
+      statesByAxisValue[axis] = new BitSet[stateCodec.getRadix(axis)];
+      for (int value = 0; value < stateCodec.getRadix(axis); value++) {
+        statesByAxisValue[axis][value] = new BitSet(stateCount);
+      }
+    }
+
+    for (int state = 0; state < stateCount; state++) {
+      for (int axis = 0; axis < stateCodec.getAxisCount(); axis++) {
+        statesByAxisValue[axis][stateCodec.axisValue(state, axis)].set(state);
+      }
+    }
+
+    this.allStates = new BitSet(stateCount);
+    this.allStates.set(0, stateCount);
+
+    this.resolvedGoals = new AtomicReferenceArray<>(
+      stateCodec.getAxisCount() < 2 ? 0 : stateCodec.getRadix(0) * stateCodec.getRadix(1));
+
+    long keyCount = stateCodec.getAxisCount() + 1;
+    boolean fits = true;
+    for (int axis = 0; axis < stateCodec.getAxisCount() && fits; axis++) {
+      fits = keyCount <= Long.MAX_VALUE / (stateCodec.getRadix(axis) + 1);
+      keyCount *= stateCodec.getRadix(axis) + 1;
+    }
+    this.keyable = fits;
+  }
+
+  /**
+   * Returns the codes of the states that are compatible to a substate description
+   *
+   * @param stateDescription the description of the substate
+   * @return the unmodifiable list of the codes of the compatible states in ascending order
+   */
+  public List<Integer> getCompatibleStates(List<Object> stateDescription) {
+    int goal = goalIndex(stateDescription);
+    if (goal < 0) {
+      return getCompatibleStatesOfKey(stateDescription);
+    }
+
+    List<Integer> compatibleStates = resolvedGoals.get(goal);
+    if (compatibleStates == null) {
+      compatibleStates = resolve(stateDescription);
+      resolvedGoals.set(goal, compatibleStates);
+    }
+    return compatibleStates;
+  }
+
+  private List<Integer> getCompatibleStatesOfKey(List<Object> stateDescription) {
+    long key = descriptionKey(stateDescription);
+    if (key < 0) {
+      // invalid descriptions are not memoized, so that they cannot evict valid ones
+      return keyable ? Collections.emptyList() : resolve(stateDescription);
+    }
+
+    List<Integer> compatibleStates;
+    synchronized (resolved) {
+      compatibleStates = resolved.get(key);
+    }
+    if (compatibleStates == null) {
+      compatibleStates = resolve(stateDescription);
+      synchronized (resolved) {
+        resolved.put(key, compatibleStates);
+      }
+    }
+    return compatibleStates;
+  }
+
+  /**
+   * Maps a description to the key of its entry in the memo, which encodes its
+   * length and the axis values of its elements (with {@code null} as a value of
+   * its own), or to -1 if the description is invalid or the keys do not fit
+   * into a long
+   */
+  private long descriptionKey(List<Object> stateDescription) {
+    if (!keyable || stateDescription.size() > stateCodec.getAxisCount()) {
+      return -1;
+    }
+
+    long key = stateDescription.size();
+    for (int axis = 0; axis < stateCodec.getAxisCount(); axis++) {
+      int value = 0;
+      if (axis < stateDescription.size() && stateDescription.get(axis) != null) {
+        value = toAxisValue(stateDescription.get(axis));
+        if (value < 0 || value >= stateCodec.getRadix(axis)) {
+          return -1;
+        }
+        value++;
+      }
+      key = key * (stateCodec.getRadix(axis) + 1) + value;
+    }
+    return key;
+  }
+
+  /**
+   * Maps a description to its entry in the memo of goal-shaped descriptions,
+   * or to -1 if the description does not give a valid value for exactly the
+   * first two axes
+   */
+  private int goalIndex(List<Object> stateDescription) {
+    if (stateDescription.size() != 2 || resolvedGoals.length() == 0) {
+      return -1;
+    }
+
+    Object first = stateDescription.get(0);
+    Object second = stateDescription.get(1);
+    if (first == null || second == null) {
+      return -1;
+    }
+
+    int firstValue = toAxisValue(first);
+    int secondValue = toAxisValue(second);
+    if (firstValue < 0 || firstValue >= stateCodec.getRadix(0)
+      || secondValue < 0 || secondValue >= stateCodec.getRadix(1)) {
+      return -1;
+    }
+    return firstValue * stateCodec.getRadix(1) + secondValue;
+  }
+
+  private List<Integer> resolve(List<Object> stateDescription) {
+    if (stateDescription.size() > stateCodec.getAxisCount()) {
+      return Collections.emptyList();
+    }
+
+    BitSet states = (BitSet) allStates.clone();
+
+    for (int axis = 0; axis < stateDescription.size(); axis++) {
+      Object element = stateDescription.get(axis);
+      if (element == null) {
+        continue;
+      }
+
+      int value = toAxisValue(element);
+      if (value < 0 || value >= stateCodec.getRadix(axis)) {
+        return Collections.emptyList();
+      }
+      states.and(statesByAxisValue[axis][value]);
+    }
+
+    List<Integer> compatibleStates = new ArrayList<>(states.cardinality());
+    for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+      compatibleStates.add(state);
+    }
+    return Collections.unmodifiableList(compatibleStates);
+  }
+
+  /**
+   * Maps an element of a substate description to an axis value, or to -1 if
+   * the element cannot be mapped
+   */
+  private static int toAxisValue(Object element) {
+    if (element instanceof Boolean) {
+      return ((Boolean) element) ? 1 : 0;
+    }
+    if (element instanceof Number) {
+      Number number = (Number) element;
+      return number.doubleValue() == number.intValue() ? number.intValue() : -1;
+    }
+    return -1;
+  }
+}
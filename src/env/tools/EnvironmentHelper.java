@@ -1,9 +1,11 @@
 package tools;
 
 import cartago.Artifact;
+import cartago.INTERNAL_OPERATION;
 import cartago.OPERATION;
 import cartago.OpFeedbackParam;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -16,19 +18,68 @@ public class EnvironmentHelper extends Artifact {
 
     private static final Logger LOGGER = Logger.getLogger(EnvironmentHelper.class.getName());
     private Lab lab; // Instance of Lab
+    private PolicyRegistry policies; // the greedy policies compiled by the QLearner, or null if no QLearner is named
+
+    private static final long DEFAULT_MIN_POLL_MILLIS = 500;
+    private static final long DEFAULT_MAX_POLL_MILLIS = 30000;
+
+    private boolean monitoring; // whether the monitor internal operation is polling the lab
+    private long minPollMillis; // the interval of the polls after the state has changed
+    private long maxPollMillis; // the interval the polls back off to while the state does not change
+    private long pollMillis; // the current interval of the polls
+    private boolean actionPerformed; // whether an action has been performed since the last poll
+    private int monitoredState = -1; // the state published as the lab_state property, or -1
+    private long stateChanges; // the number of changes of the monitored state
+    private final LearningMetrics.Meter polls = new LearningMetrics.Meter();
+    private String metricsName; // the name of the metrics of the lab over JMX
+
+    private TransitionLog.Writer transitionLog; // the log of the transitions of the lab, or null
+    private int pendingState = -1; // the state of the last performed action, until the next read of the state
+    private int pendingAction = -1; // the last performed action, until the next read of the state
+    private int pendingGoalId = -1; // the goal of the policy that chose the last performed action, or -1
 
     @OPERATION
     public void init(String environmentURL) {
+        init(environmentURL, null);
+    }
+
+    /**
+     * Initializes the helper with the lab of a Thing Description and the QLearner whose
+     * policies {@link #senseAndDecide} follows
+     *
+     * @param environmentURL the URL of the W3C Thing Description of the lab
+     * @param learnerName the name of the QLearner artifact (e.g., "qlearner"), or null to not use policies
+     */
+    @OPERATION
+    public void init(String environmentURL, String learnerName) {
         // Create and initialize the Lab instance
         try {
             lab = new Lab(environmentURL);
+            metricsName = "EnvironmentHelper-" + getId().getName();
+            lab.setMetrics(LearningMetrics.register(metricsName));
+            policies = learnerName == null ? null : PolicyRegistry.forLearner(learnerName);
+            transitionLog = TransitionLog.getDefaultWriter();
             LOGGER.info("EnvironmentHelper initialized with Lab at: " + environmentURL);
+
+            // lab_metrics(StatusReads, StatusReadMeanMillis, StatusReadP99Millis, Actions, ActionMeanMillis, ActionP99Millis, SettleMeanMillis)
+            defineObsProperty("lab_metrics", 0L, 0.0, 0.0, 0L, 0.0, 0.0, 0.0);
+            publishMetrics();
+
+            // monitor_metrics(Polls, PollsPerSecond, StateChanges, PollIntervalMillis)
+            defineObsProperty("monitor_metrics", 0L, 0.0, 0L, 0L);
         } catch (Exception e) {
             LOGGER.severe("Failed to initialize Lab: " + e.getMessage());
             failed("Failed to initialize Lab: " + e.getMessage());
         }
     }
 
+    @Override
+    protected void dispose() {
+        if (metricsName != null) {
+            LearningMetrics.unregister(metricsName);
+        }
+    }
+
     @OPERATION
     public void getCurrentState(OpFeedbackParam<Integer[]> currentState) {
         if (lab == null) {
@@ -38,6 +89,7 @@ public class EnvironmentHelper extends Artifact {
         }
 
         List<Integer> labState = lab.getCurrentState();
+        recordTransition();
 
         if (labState == null) {
             LOGGER.warning("Lab.getCurrentState() returned null.");
@@ -48,6 +100,7 @@ public class EnvironmentHelper extends Artifact {
         try {
             Integer[] stateArray = labState.toArray(new Integer[0]);
             currentState.set(stateArray);
+            publishMetrics();
         } catch (Exception e) {
             LOGGER.severe("Error while returning the current state: " + e.getMessage());
             failed("Failed to return the current state. Exception: " + e.getMessage());
@@ -64,6 +117,8 @@ public class EnvironmentHelper extends Artifact {
             return;
         }
         stateIndex.set(lab.readCurrentState());
+        recordTransition();
+        publishMetrics();
     }
 
     @OPERATION
@@ -90,7 +145,255 @@ public class EnvironmentHelper extends Artifact {
             failed("Lab is not initialized. Did you call init first?");
             return;
         }
+        Observation observation = lab.getLastObservation();
+        expectTransition(observation == null ? -1 : observation.getStateCode(), action, -1);
         lab.performAction(action);
         LOGGER.info("Performed action: " + action);
+        publishMetrics();
+        pollMillis = minPollMillis;
+        actionPerformed = true;
+    }
+
+    /**
+     * Reads the state of the lab once and decides what to do to achieve a goal: if the
+     * light levels of the state are the desired ones, the goal is reached, otherwise the
+     * next best action is looked up in the greedy policy that the QLearner named in
+     * {@link #init(String, String)} compiled for the goal, and optionally performed. This replaces reading the state, comparing it
+     * to the goal, asking the QLearner for an action and invoking it with one operation.
+     * The action is only performed if it is the action with the same id on the lab of
+     * the helper, since the policy may have been compiled for another environment, e.g.
+     * a simulation. The operation fails if the goal description is invalid or if the state
+     * of the lab cannot be read. The transitions caused by the performed actions are recorded in the
+     * {@link PolicyRegistry} of the QLearner, from which the QLearner adds them to its transition model
+     * and to the replay buffer of the goal.
+     *
+     * @param goalDescription the desired goal (e.g., [2,3])
+     * @param performObj whether to perform the next best action on the lab
+     * @param goalReached the (returned) result whether the goal is reached
+     * @param nextBestActionTag the (returned) semantic annotation of the next best action, or "" if the goal is reached
+     * @param nextBestActionPayloadTags the (returned) semantic annotations of the payload of the next best action
+     * @param nextBestActionPayload the (returned) payload of the next best action
+     */
+    @OPERATION
+    public void senseAndDecide(Object[] goalDescription, Object performObj, OpFeedbackParam<Boolean> goalReached,
+                               OpFeedbackParam<String> nextBestActionTag, OpFeedbackParam<Object[]> nextBestActionPayloadTags,
+                               OpFeedbackParam<Object[]> nextBestActionPayload) {
+        if (lab == null) {
+            failed("Lab is not initialized. Did you call init first?");
+            return;
+        }
+
+        int goalId;
+        try {
+            int[] goal = TrainingEngine.parseGoal(goalDescription);
+            goalId = GreedyPolicy.goalId(lab.getStateCodec(), goal[0], goal[1]);
+        } catch (RuntimeException e) {
+            LOGGER.warning("Invalid goal " + Arrays.toString(goalDescription) + ": " + e.getMessage());
+            failed("Invalid goal description " + Arrays.toString(goalDescription) + ": " + e.getMessage());
+            return;
+        }
+        if (policies == null) {
+            failed("The helper has not been initialized with the name of a QLearner");
+            return;
+        }
+        GreedyPolicy policy = policies.get(goalId);
+        if (policy == null) {
+            failed("No policy has been computed for goal " + Arrays.toString(goalDescription));
+            return;
+        }
+
+        int state;
+        try {
+            state = lab.readStatus();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to read the state of the lab: " + e.getMessage());
+            failed("Failed to read the state of the lab: " + e.getMessage());
+            return;
+        }
+        recordTransition();
+        publishMetrics();
+        if (state < 0) {
+            failed("The state of the lab is not known");
+            return;
+        }
+        if (policy.isGoalState(state)) {
+            goalReached.set(true);
+            nextBestActionTag.set("");
+            nextBestActionPayloadTags.set(new Object[0]);
+            nextBestActionPayload.set(new Object[0]);
+            return;
+        }
+
+        Action action = policy.getAction(state);
+        if (action == null) {
+            failed("No action is applicable in state " + lab.getLastObservation().getValues());
+            return;
+        }
+        goalReached.set(false);
+        nextBestActionTag.set(action.getActionTag());
+        nextBestActionPayloadTags.set(action.getPayloadTags());
+        nextBestActionPayload.set(action.getPayload());
+
+        if (Boolean.parseBoolean(performObj.toString())) {
+            int actionId = policy.getActionId(state);
+            Action labAction = actionId < lab.getActionCount() ? lab.getAction(actionId) : null;
+            if (!action.matches(labAction)) {
+                LOGGER.severe("The action " + actionId + " of the policy (" + action + ") is not the action of the lab ("
+                        + labAction + ")");
+                failed("The policy for goal " + Arrays.toString(goalDescription)
+                        + " was compiled for another action space than the one of the lab");
+                return;
+            }
+            expectTransition(state, actionId, policy.getGoalId());
+            lab.performAction(actionId);
+            LOGGER.info("Performed action: " + action);
+            publishMetrics();
+            pollMillis = minPollMillis;
+            actionPerformed = true;
+        }
+    }
+
+    /**
+     * Starts polling the Status of the lab in the background with the default intervals
+     */
+    @OPERATION
+    public void startMonitoring() {
+        startMonitoring(DEFAULT_MIN_POLL_MILLIS, DEFAULT_MAX_POLL_MILLIS);
+    }
+
+    /**
+     * Starts polling the Status of the lab in the background, so that agents react to the
+     * changes of the state instead of polling themselves. The discretized state is published
+     * as the lab_state(Z1Level, Z2Level, Z1Light, Z2Light, Z1Blinds, Z2Blinds, Sunshine)
+     * property, which is only updated when the state changes. The polls are adaptive: after a
+     * change of the state or an action, the lab is polled every minimum interval, and while
+     * the state does not change, the interval doubles up to the maximum interval. When the
+     * interval reaches the maximum, the lab_stable signal is emitted, so that agents can act
+     * on a state that an action did not change. If the lab is already being monitored, only
+     * the intervals are changed.
+     *
+     * @param minIntervalObj the minimum interval of the polls in milliseconds
+     * @param maxIntervalObj the maximum interval of the polls in milliseconds
+     */
+    @OPERATION
+    public void startMonitoring(Object minIntervalObj, Object maxIntervalObj) {
+        if (lab == null) {
+            failed("Lab is not initialized. Did you call init first?");
+            return;
+        }
+        minPollMillis = Math.max(1, Long.parseLong(minIntervalObj.toString()));
+        maxPollMillis = Math.max(minPollMillis, Long.parseLong(maxIntervalObj.toString()));
+        pollMillis = minPollMillis;
+        if (!monitoring) {
+            monitoring = true;
+            execInternalOp("monitor");
+            LOGGER.info("Monitoring the lab every " + minPollMillis + " to " + maxPollMillis + " ms");
+        }
+    }
+
+    /**
+     * Stops polling the Status of the lab after the current poll
+     */
+    @OPERATION
+    public void stopMonitoring() {
+        monitoring = false;
+    }
+
+    /**
+     * Polls the Status of the lab until the monitoring is stopped. The artifact is only
+     * locked while the Status is read, so the other operations run between the polls. The
+     * interval is waited in slices of the minimum interval, and the lab is polled right
+     * after a slice in which an action was performed, so that the effects of the action
+     * are observed without waiting for a backed-off interval. If the Status cannot be
+     * read, the polls back off to the maximum interval.
+     */
+    @INTERNAL_OPERATION
+    void monitor() {
+        while (monitoring) {
+            actionPerformed = false;
+            try {
+                int state = lab.readStatus();
+                recordTransition();
+                polls.mark();
+                if (state != monitoredState) {
+                    publishState(state);
+                    pollMillis = minPollMillis;
+                } else if (pollMillis < maxPollMillis) {
+                    pollMillis = Math.min(pollMillis * 2, maxPollMillis);
+                    if (pollMillis == maxPollMillis) {
+                        signal("lab_stable", state);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Failed to poll the lab: " + e.getMessage());
+                pollMillis = maxPollMillis;
+            }
+            publishMetrics();
+            getObsProperty("monitor_metrics").updateValues(polls.getCount(), polls.getRate(), stateChanges, pollMillis);
+
+            for (long waited = 0; monitoring && !actionPerformed && waited < pollMillis; waited += minPollMillis) {
+                await_time(Math.min(minPollMillis, pollMillis - waited));
+            }
+        }
+        LOGGER.info("Stopped monitoring the lab after " + polls.getCount() + " polls and " + stateChanges + " changes");
+    }
+
+    /**
+     * Remembers a performed action, whose transition is recorded with the next read of the state
+     *
+     * @param state the state the action is performed in, or -1 if it is not known
+     * @param action the action
+     * @param goalId the goal of the policy that chose the action, or -1
+     */
+    private void expectTransition(int state, int action, int goalId) {
+        pendingState = state;
+        pendingAction = state < 0 ? -1 : action;
+        pendingGoalId = goalId;
+    }
+
+    /**
+     * Records the transition of the last performed action, if the state has not been read
+     * since the action: the transition is appended to the transition log, if a log is
+     * configured, and if a policy chose the action, it is recorded in the policy registry
+     */
+    private void recordTransition() {
+        if (pendingAction >= 0) {
+            if (transitionLog != null) {
+                lab.logTransition(transitionLog, TransitionLog.SOURCE_CONTROL, pendingState, pendingAction, Double.NaN);
+                transitionLog.flush();
+            }
+            Observation observation = lab.getLastObservation();
+            if (pendingGoalId >= 0 && observation != null && policies != null) {
+                policies.recordControlTransition(pendingGoalId, pendingState, pendingAction,
+                        observation.getStateCode());
+            }
+        }
+        pendingAction = -1;
+    }
+
+    /**
+     * Publishes a changed state as the lab_state observable property
+     *
+     * @param state the state code
+     */
+    private void publishState(int state) {
+        Object[] values = lab.getLastObservation().getValues().toArray();
+        if (monitoredState < 0) {
+            defineObsProperty("lab_state", values);
+        } else {
+            getObsProperty("lab_state").updateValues(values);
+        }
+        monitoredState = state;
+        stateChanges++;
+    }
+
+    /**
+     * Updates the lab_metrics observable property from the metrics of the lab
+     */
+    private void publishMetrics() {
+        LearningMetrics metrics = lab.getMetrics();
+        getObsProperty("lab_metrics").updateValues(metrics.getStatusReads(), metrics.getStatusReadMeanMillis(),
+                metrics.getStatusReadP99Millis(), metrics.getActions(), metrics.getActionMeanMillis(),
+                metrics.getActionP99Millis(), metrics.getSettleMeanMillis());
     }
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+package tools;
+
+import java.util.Arrays;
+
+/**
+ * The greedy policy of a Q matrix for a goal, compiled into a table of the
+ * best applicable action of each state.
+ *
+ * <p>
+ * A policy is immutable. It is compiled once, when the Q matrix of its goal has
+ * been computed or loaded, and then answers which action to take in a state
+ * with two array reads: the action of the state code, and the {@link Action}
+ * of the action id, whose tag and payload are resolved when the policy is
+ * compiled. Policies are published through a {@link PolicyRegistry} under a
+ * dense goal id, see {@link #goalId}.
+ * </p>
+ */
+public final class GreedyPolicy {
+
+  private final StateCodec codec;
+  private final int z1Level;
+  private final int z2Level;
+  private final int[] actions;
+  private final Action[] actionsById;
+
+  private GreedyPolicy(StateCodec codec, int z1Level, int z2Level, int[] actions, Action[] actionsById) {
+    this.codec = codec;
+    this.z1Level = z1Level;
+    this.z2Level = z2Level;
+    this.actions = actions;
+    this.actionsById = actionsById;
+  }
+
+  /**
+   * Compiles the greedy policy of a Q matrix
+   *
+   * @param qTable the Q matrix of the goal
+   * @param env the environment, which provides the applicable actions of the states and the actions
+   * @param goal the desired light levels of both zones, e.g. {2, 3}
+   * @return the policy
+   */
+  public static GreedyPolicy compile(QTable qTable, LearningEnvironment env, int[] goal) {
+    int[] actions = new int[qTable.getStateCount()];
+    for (int state = 0; state < actions.length; state++) {
+      actions[state] = qTable.rowArgMax(state, env.getApplicableActionMask(state));
+    }
+    Action[] actionsById = new Action[env.getActionCount()];
+    for (int action = 0; action < actionsById.length; action++) {
+      actionsById[action] = env.getAction(action);
+    }
+    return new GreedyPolicy(env.getStateCodec(), goal[0], goal[1], actions, actionsById);
+  }
+
+  /**
+   * Returns the dense id of a goal, in the range [0, z1Radix * z2Radix)
+   *
+   * @param codec the codec of the states
+   * @param z1Level the desired light level of Zone 1
+   * @param z2Level the desired light level of Zone 2
+   * @return the goal id, e.g. z1Level * 4 + z2Level for the lab
+   */
+  public static int goalId(StateCodec codec, int z1Level, int z2Level) {
+    if (z1Level < 0 || z1Level >= codec.getRadix(0) || z2Level < 0 || z2Level >= codec.getRadix(1)) {
+      throw new IllegalArgumentException("Invalid goal [" + z1Level + "," + z2Level + "]");
+    }
+    return z1Level * codec.getRadix(1) + z2Level;
+  }
+
+  /**
+   * Returns the number of dense goal ids of a codec
+   *
+   * @param codec the codec of the states
+   * @return the number of goals, e.g. 16 for the lab
+   */
+  public static int goalCount(StateCodec codec) {
+    return codec.getRadix(0) * codec.getRadix(1);
+  }
+
+  public int getGoalId() {
+    return goalId(codec, z1Level, z2Level);
+  }
+
+  public int[] getGoal() {
+    return new int[] {z1Level, z2Level};
+  }
+
+  public StateCodec getStateCodec() {
+    return codec;
+  }
+
+  /**
+   * Returns the best action in a state
+   *
+   * @param state the state code
+   * @return the action id, or -1 if no action is applicable in the state
+   */
+  public int getActionId(int state) {
+    return actions[state];
+  }
+
+  /**
+   * Returns the best action in a state, with its tag and payload
+   *
+   * @param state the state code
+   * @return the action, or null if no action is applicable in the state
+   */
+  public Action getAction(int state) {
+    int action = actions[state];
+    return action < 0 ? null : actionsById[action];
+  }
+
+  /**
+   * Returns whether a state is a goal state of the policy
+   *
+   * @param state the state code
+   * @return true if the light levels of the state are the desired ones
+   */
+  public boolean isGoalState(int state) {
+    return codec.axisValue(state, 0) == z1Level && codec.axisValue(state, 1) == z2Level;
+  }
+
+  @Override
+  public String toString() {
+    return "Greedy policy for goal " + Arrays.toString(getGoal()) + " over " + actions.length + " states";
+  }
+}
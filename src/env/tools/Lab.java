@@ -2,17 +2,16 @@ package tools;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.*;
 
 import com.google.common.collect.Sets;
 import ch.unisg.ics.interactions.wot.td.ThingDescription;
-import ch.unisg.ics.interactions.wot.td.ThingDescription.TDFormat;
 import ch.unisg.ics.interactions.wot.td.affordances.ActionAffordance;
 import ch.unisg.ics.interactions.wot.td.affordances.Form;
 import ch.unisg.ics.interactions.wot.td.affordances.PropertyAffordance;
 import ch.unisg.ics.interactions.wot.td.clients.TDHttpRequest;
 import ch.unisg.ics.interactions.wot.td.clients.TDHttpResponse;
-import ch.unisg.ics.interactions.wot.td.io.TDGraphReader;
 import ch.unisg.ics.interactions.wot.td.schemas.DataSchema;
 import ch.unisg.ics.interactions.wot.td.schemas.BooleanSchema;
 import ch.unisg.ics.interactions.wot.td.schemas.ObjectSchema;
@@ -28,6 +27,19 @@ import ch.unisg.ics.interactions.wot.td.vocabularies.TD;
 * (simulated or real environments), given the W3C Web of Things Thing
 * Description of the lab environment.
 * </p>
+*
+* <p> The current state of the lab (and of every state of the lab) is formed as a
+* a list of 7 integer values: [z1Level, z2Level, z1Light, z2Light, z1Blinds, z2Blinds, sunshine]:
+* <ul>
+* <li> z1Level: the level of light in Zone 1
+* <li> z2Level: the level of light in Zone 2
+* <li> z1Light: the status of the lights in Zone 1
+* <li> z2Light: the status of the lights in Zone 2
+* <li> z1Blinds: the status of the blinds in Zone 1
+* <li> z2Blinds: the status of the blinds in Zone 2
+* <li> sunshine: the level of sunshine out of the lab
+* </ul>
+* </p>
 */
 public class Lab extends LearningEnvironment {
 
@@ -40,19 +52,26 @@ public class Lab extends LearningEnvironment {
   private ThingDescription td;
 
   /**
-  * The current state of the lab (and of every state of the lab) is formed as a
-  * a list of 7 integer values: [z1Level, z2Level, z1Light, z2Light, z1Blinds, z2Blinds, sunshine]:
-  * <ul>
-  * <li> z1Level: the level of light in Zone 1
-  * <li> z2Level: the level of light in Zone 2
-  * <li> z1Light: the status of the lights in Zone 1
-  * <li> z2Light: the status of the lights in Zone 2
-  * <li> z1Blinds: the status of the blinds in Zone 1
-  * <li> z2Blinds: the status of the blinds in Zone 2
-  * <li> sunshine: the level of sunshine out of the lab
-  * </ul>
+  * Waits for the lab to react to performed actions before the state is read
+  */
+  private StepSynchronizer stepSynchronizer = new StepSynchronizer(this::readCurrentState);
+
+  /**
+  * Sends the Status reads and the action invocations over pooled connections
+  */
+  private PooledHttpTransport transport = PooledHttpTransport.getDefault();
+
+  /**
+  * Records the round-trip times of the requests and the settle times of the lab, in a
+  * registry of its own unless the artifact that uses the lab sets its registry
+  */
+  private LearningMetrics metrics = new LearningMetrics();
+
+  /**
+  * The request and the schema for reading the Status property, created on the first read
   */
-  protected List<Integer> currentState = Arrays.asList(new Integer[7]);
+  private TDHttpRequest statusRequest;
+  private ObjectSchema statusSchema;
 
   /**
   * The state of the lab depends on the values of
@@ -147,8 +166,8 @@ public class Lab extends LearningEnvironment {
 
       try {
 
-        // Read the Thing Description from the URL
-        this.td = TDGraphReader.readFromURL(TDFormat.RDF_TURTLE, url);
+        // Read the Thing Description from the URL, or reuse a cached copy
+        this.td = ThingDescriptionCache.getDefault().get(url);
 
         // Create the state space
         createStateSpace();
@@ -175,116 +194,121 @@ public class Lab extends LearningEnvironment {
       }
     }
 
-    /**
-    * @see {@link LearningEnvironment#getCompatibleStates(List)}
+  /**
+    * @see {@link LearningEnvironment#readCurrentState()}
     */
     @Override
-    public List<Integer> getCompatibleStates(List<Object> stateDescription) {
-
-      List<Integer> compatibleStates = new ArrayList<>();
-      List<List<Integer>> stateList = new ArrayList<>(stateSpace);
-
-      LOGGER.info("Starting getCompatibleStates...");
-      LOGGER.info("Received state description: " + stateDescription);
-      //LOGGER.info("State space size: " + stateList.size());
-
-
-      for (int i=0; i<stateList.size(); i++) {
-        List<Integer> state = stateList.get(i);
-
-        List<Object> substates = new ArrayList<>();
-
-        substates.add(Lab.z1Level.get(state.get(0)));
-        substates.add(Lab.z2Level.get(state.get(1)));
-        substates.add(Lab.z1Light.get(state.get(2)));
-        substates.add(Lab.z2Light.get(state.get(3)));
-        substates.add(Lab.z1Blinds.get(state.get(4)));
-        substates.add(Lab.z2Blinds.get(state.get(5)));
-        substates.add(Lab.sunshine.get(state.get(6)));
-
-        // Debugging: Log individual state and substates
-        // LOGGER.info("Checking state " + i + ": " + state);
-        // LOGGER.info("Constructed substates: " + substates);
-
-
-        // logList("Substates", substates);
-        // logList("State Description", stateDescription);
-
-        if (Collections.indexOfSubList(substates, stateDescription) != -1){
-          compatibleStates.add(i);
-          // System.out.println(state);
-          // Log the compatible state that matched
-          // LOGGER.info("Compatible state found (index " + i + "): " + substates);
-
-
-        } else {
-          // Log why no match occurred
-         // LOGGER.info("No match for state " + i + ". Substates: " + substates + ", Description: " + stateDescription);
-
-        };
-
+    public int readCurrentState() {
+      try {
+        return readStatus();
+      } catch (IOException e) {
+        LOGGER.severe(e.getMessage());
       }
-      return compatibleStates;
+      return encodeCurrentState();
     }
 
-
-  private void logList(String listName, List<Object> list) {
-    LOGGER.info(listName + ": " + list);
-    for (int i = 0; i < list.size(); i++) {
-      Object val = list.get(i);
-      String type = (val == null) ? "null" : val.getClass().getName();
-      LOGGER.info(listName + "[" + i + "] = (" + type + ") " + val);
+    /**
+    * Reads the Status property like {@link #readCurrentState()}, but reports a failed
+    * read instead of returning the last observed state
+    *
+    * @return the code of the current state, or of the last observed state if the lab
+    * has no readable Status property
+    * @throws IOException if the Status property cannot be read or decoded
+    */
+    public int readStatus() throws IOException {
+      if (!resolveStatusRequest()) {
+        return encodeCurrentState();
+      }
+      long start = System.nanoTime();
+      TDHttpResponse response = transport.execute(statusRequest, null);
+      metrics.recordStatusRead(System.nanoTime() - start);
+      try {
+        return decodeStatus(response);
+      } catch (RuntimeException e) {
+        throw new IOException("Decoding the Status of the lab failed: " + e, e);
+      }
     }
-  }
 
-
-  /**
-    * @see {@link LearningEnvironment#readCurrentState()}
+    /**
+    * Reads the Status property without blocking the calling thread
+    *
+    * @see {@link LearningEnvironment#readCurrentStateAsync()}
     */
     @Override
-    public int readCurrentState() {
-      Optional<PropertyAffordance> p = this.td.getFirstPropertyBySemanticType("https://example.org/was#Status");
+    public CompletableFuture<Integer> readCurrentStateAsync() {
+      if (!resolveStatusRequest()) {
+        return CompletableFuture.completedFuture(encodeCurrentState());
+      }
+      long start = System.nanoTime();
+      return transport.executeAsync(statusRequest, null).thenApply(response -> {
+        metrics.recordStatusRead(System.nanoTime() - start);
+        return decodeStatus(response);
+      });
+    }
+
+    /**
+    * Finds the form for reading the Status property on the first call
+    *
+    * @return true if the lab has a readable Status property
+    */
+    private synchronized boolean resolveStatusRequest() {
+      if (statusRequest == null) {
+        Optional<PropertyAffordance> p = this.td.getFirstPropertyBySemanticType("https://example.org/was#Status");
 
-      if (p.isPresent()) {
+        if (p.isPresent()) {
 
-        Optional<Form> f = p.get().getFirstFormForOperationType(TD.readProperty);
-        DataSchema ds = p.get().getDataSchema();
+          Optional<Form> f = p.get().getFirstFormForOperationType(TD.readProperty);
 
-        if (f.isPresent()) {
+          if (f.isPresent()) {
+            statusSchema = (ObjectSchema) p.get().getDataSchema();
+            statusRequest = new TDHttpRequest(f.get(), TD.readProperty);
+          }
+        }
+      }
+      return statusRequest != null;
+    }
 
-          TDHttpRequest request = new TDHttpRequest(f.get(), TD.readProperty);
+    /**
+    * Publishes the observation of a response of the Status property
+    *
+    * @param response the response
+    * @return the code of the observed state
+    */
+    private int decodeStatus(TDHttpResponse response) {
+      Map<String, Object> status = response.getPayloadAsObject(statusSchema);
 
-          try {
-            TDHttpResponse response = request.execute();
-            Map<String, Object> status = response.getPayloadAsObject((ObjectSchema) ds);
+      double z1Lux = (Double) status.get("http://example.org/was#Z1Level");
+      double z2Lux = (Double) status.get("http://example.org/was#Z2Level");
 
-            int z1Level = discretizeLightLevel((Double) status.get("http://example.org/was#Z1Level"));
-            int z2Level = discretizeLightLevel((Double) status.get("http://example.org/was#Z2Level"));
+      boolean z1Light = (Boolean) status.get("http://example.org/was#Z1Light");
+      boolean z2Light = (Boolean) status.get("http://example.org/was#Z2Light");
 
-            boolean z1Light = (Boolean) status.get("http://example.org/was#Z1Light");
-            boolean z2Light = (Boolean) status.get("http://example.org/was#Z2Light");
+      boolean z1Blinds = (Boolean) status.get("http://example.org/was#Z1Blinds");
+      boolean z2Blinds = (Boolean) status.get("http://example.org/was#Z2Blinds");
 
-            boolean z1Blinds = (Boolean) status.get("http://example.org/was#Z1Blinds");
-            boolean z2Blinds = (Boolean) status.get("http://example.org/was#Z2Blinds");
+      double sunshineLux = (Double) status.get("http://example.org/was#Sunshine");
 
-            int sunshine = discretizeSunshine((Double) status.get("http://example.org/was#Sunshine"));
+      // the energy cost is only part of the status if the Thing Description describes it
+      Object energyCost = status.get("http://example.org/was#EnergyCost");
 
-            currentState.set(0, z1Level);
-            currentState.set(1, z2Level);
-            currentState.set(2, z1Light ? 1 : 0);
-            currentState.set(3, z2Light ? 1 : 0);
-            currentState.set(4, z1Blinds ? 1 : 0);
-            currentState.set(5, z2Blinds ? 1 : 0);
-            currentState.set(6, sunshine);
+      int[] values = {
+        discretizeLightLevel(z1Lux),
+        discretizeLightLevel(z2Lux),
+        z1Light ? 1 : 0,
+        z2Light ? 1 : 0,
+        z1Blinds ? 1 : 0,
+        z2Blinds ? 1 : 0,
+        discretizeSunshine(sunshineLux)
+      };
 
-          } catch (IOException e) {
-            LOGGER.severe(e.getMessage());
-          }
-        }
-      }
+      return publish(new Observation(stateCodec.encode(values), values, z1Lux, z2Lux, sunshineLux,
+        energyCost instanceof Number ? ((Number) energyCost).doubleValue() : Double.NaN,
+        System.currentTimeMillis()));
+    }
 
-      List<List<Integer>> stateList = new ArrayList<>(stateSpace);
-      return stateList.indexOf(this.currentState);
+    private int encodeCurrentState() {
+      Observation observation = getLastObservation();
+      return observation == null ? -1 : observation.getStateCode();
     }
 
   /**
@@ -298,44 +322,141 @@ public class Lab extends LearningEnvironment {
   }
 
     /**
-    * @see {@link LearningEnvironment#getApplicableActions(int)}
+    * @see {@link LearningEnvironment#performAction(int)}
     */
     @Override
-    public List<Integer> getApplicableActions(int state) {
+    public void performAction(int action) {
+      Action a = actionSpace.get(action);
+
+      try {
+        long start = System.nanoTime();
+        transport.execute(a.getRequest(), getJsonPayload(a));
+        metrics.recordAction(System.nanoTime() - start);
+        LOGGER.info(a.getRequest().toString());
+      } catch (IOException e) {
+        LOGGER.severe(e.getMessage());
+      }
 
-      List<Integer> applicableActions = new ArrayList<>();
-      List<List<Integer>> stateList = new ArrayList<>(stateSpace);
-      List<Integer> st = stateList.get(state);
+    }
 
-      for (int action : actionSpace.keySet()) {
+    /**
+    * Invokes the action without blocking the calling thread
+    *
+    * @see {@link LearningEnvironment#performActionAsync(int)}
+    */
+    @Override
+    public CompletableFuture<Void> performActionAsync(int action) {
+      Action a = actionSpace.get(action);
+      String payload;
+      try {
+        payload = getJsonPayload(a);
+      } catch (IOException e) {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        return failed;
+      }
+      long start = System.nanoTime();
+      return transport.executeAsync(a.getRequest(), payload)
+        .thenRun(() -> {
+          metrics.recordAction(System.nanoTime() - start);
+          LOGGER.info(a.getRequest().toString());
+        });
+    }
 
-        Action a = actionSpace.get(action);
+    /**
+    * Invokes the action and sends the Status read right after it, without waiting
+    * for the response to the action, so that both requests are in flight at once
+    *
+    * @see {@link LearningEnvironment#performActionAndReadAsync(int)}
+    */
+    @Override
+    public CompletableFuture<Integer> performActionAndReadAsync(int action) {
+      CompletableFuture<Void> performed = performActionAsync(action);
+      CompletableFuture<Integer> read = readCurrentStateAsync();
+      return performed.thenCombine(read, (accepted, state) -> state);
+    }
 
-        int stateAxis = a.getApplicableOnStateAxis();
-        int stateValue = a.getApplicableOnStateValue();
+    /**
+    * Returns the metrics the lab records its requests and settle times to
+    *
+    * @return the metrics registry
+    */
+    public LearningMetrics getMetrics() {
+      return metrics;
+    }
 
-        if (st.get(stateAxis) == stateValue) {
-          applicableActions.add(action);
-        }
-      }
+    /**
+    * Sets the metrics the lab records its requests and settle times to
+    *
+    * @param metrics the metrics registry
+    */
+    public void setMetrics(LearningMetrics metrics) {
+      this.metrics = metrics;
+    }
 
-      return applicableActions;
+    /**
+    * Returns the transport that sends the requests of the lab
+    *
+    * @return the HTTP transport
+    */
+    public PooledHttpTransport getTransport() {
+      return transport;
     }
 
     /**
-    * @see {@link LearningEnvironment#performAction(int)}
+    * Sets the transport that sends the requests of the lab, e.g. to use a pool
+    * with different limits or timeouts
+    *
+    * @param transport the HTTP transport
     */
-    @Override
-    public void performAction(int action) {
-      Action a = actionSpace.get(action);
+    public void setTransport(PooledHttpTransport transport) {
+      this.transport = transport;
+    }
 
+    /**
+    * Returns the JSON payload of an action, as the request of the action serialized it
+    * from the input schema of the Thing Description, e.g. {"Z1Light":true}
+    *
+    * @throws IOException if the payload cannot be read from the request
+    */
+    private static String getJsonPayload(Action a) throws IOException {
       try {
-        a.getRequest().execute();
-        LOGGER.info(a.getRequest().toString());
-      } catch (IOException e) {
-        LOGGER.severe(e.getMessage());
+        return a.getRequest().getPayloadAsString();
+      } catch (Exception e) {
+        throw new IOException("Reading the payload of " + a + " failed: " + e.getMessage(), e);
       }
+    }
+
+    /**
+    * Polls the Status property until the discretized state of the lab has
+    * stabilized after the last action
+    *
+    * @see {@link LearningEnvironment#awaitSettled()}
+    */
+    @Override
+    public int awaitSettled() {
+      int state = stepSynchronizer.awaitSettled();
+      metrics.recordSettle(stepSynchronizer.getLastSettleMillis(), stepSynchronizer.isLastTimedOut());
+      return state;
+    }
+
+    /**
+    * Returns the synchronizer that waits for the lab to react to actions
+    *
+    * @return the step synchronizer
+    */
+    public StepSynchronizer getStepSynchronizer() {
+      return stepSynchronizer;
+    }
 
+    /**
+    * Sets the synchronizer that waits for the lab to react to actions, e.g. to
+    * adapt its timing to the reaction time of a real lab
+    *
+    * @param stepSynchronizer the step synchronizer
+    */
+    public void setStepSynchronizer(StepSynchronizer stepSynchronizer) {
+      this.stepSynchronizer = stepSynchronizer;
     }
 
     /**
@@ -382,42 +503,7 @@ public class Lab extends LearningEnvironment {
         }
       }
       setApplicableActions();
-    }
-
-    /**
-    * Maps lux values to light levels:
-    * lux < 50 -> level 0
-    * lux in [50,100) -> level 1
-    * lux in [100,300) -> level 2
-    * lux >= 300 -> level 3
-    */
-    private int discretizeLightLevel(Double value) {
-      if (value < 50) {
-        return 0;
-      } else if (value < 100) {
-        return 1;
-      } else if (value < 300) {
-        return 2;
-      }
-      return 3;
-    }
-
-    /**
-    * Maps lux values to light levels:
-    * lux < 50 -> level 0
-    * lux in [50,200) -> level 1
-    * lux in [200,700) -> level 2
-    * lux >= 700 -> level 3
-    */
-    private int discretizeSunshine(Double value) {
-      if (value < 50) {
-        return 0;
-      } else if (value < 200) {
-        return 1;
-      } else if (value < 700) {
-        return 2;
-      }
-      return 3;
+      indexApplicableActions();
     }
 
     /**
@@ -433,6 +519,9 @@ public class Lab extends LearningEnvironment {
                     Collections.unmodifiableSet(z2Blinds.keySet()),
                     Collections.unmodifiableSet(sunshine.keySet())
                     );
+
+      // The codec follows the ordering of the cartesian product above
+      setStateCodec(StateCodec.LAB);
     }
 
 
@@ -1,6 +1,7 @@
 package tools;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * An abstract class for representing a learning environment which can be used
@@ -18,6 +19,29 @@ public abstract class LearningEnvironment {
    */
   protected Set<List<Integer>> stateSpace = new HashSet<>();
 
+  /**
+   * The codec that maps each state of the state space to its position in the
+   * state space and back.
+   */
+  protected StateCodec stateCodec;
+
+  /**
+   * The current state of the environment as a list of integer values, one per
+   * axis of the state codec, e.g., [0,1,0,1,0,0,2]. The list is unmodifiable,
+   * and is replaced whenever an observation is published by {@link #publish(Observation)}.
+   */
+  protected volatile List<Integer> currentState = Collections.emptyList();
+
+  /**
+   * The observation of the last read of the state
+   */
+  private volatile Observation lastObservation;
+
+  /**
+   * The index that resolves substate descriptions to compatible states
+   */
+  private CompatibleStateIndex compatibleStateIndex;
+
   /**
    * The action space of the learning environment.
    * <p>
@@ -34,6 +58,26 @@ public abstract class LearningEnvironment {
    */
   protected List<String> affordanceTypes = new ArrayList<>();
 
+  /**
+   * The actions that are applicable in each state, indexed by the state code.
+   * <p>
+   * Built once by {@link #indexApplicableActions()} after the state space and
+   * the action space have been created, and never modified afterwards.
+   * </p>
+   */
+  private int[][] applicableActionIds = new int[0][];
+
+  /**
+   * The actions that are applicable in each state as bitmasks, where the bit
+   * {@code 1L << action} is set if the action is applicable
+   */
+  private long[] applicableActionMasks = new long[0];
+
+  /**
+   * The actions that are applicable in each state as unmodifiable lists
+   */
+  private List<List<Integer>> applicableActionLists = new ArrayList<>();
+
   /**
    * Returns the size of the state space
    *
@@ -43,6 +87,90 @@ public abstract class LearningEnvironment {
     return stateSpace.size();
   }
 
+  /**
+   * Returns the codec that maps the states of the environment to integer values
+   *
+   * @return the state codec
+   */
+  public StateCodec getStateCodec() {
+    return stateCodec;
+  }
+
+  /**
+   * Sets the codec of the state space and indexes the states of the state space
+   * by the values of their axes
+   *
+   * @param stateCodec the state codec
+   */
+  protected void setStateCodec(StateCodec stateCodec) {
+    this.stateCodec = stateCodec;
+    this.compatibleStateIndex = new CompatibleStateIndex(stateCodec);
+    this.currentState = Collections.unmodifiableList(Arrays.asList(new Integer[stateCodec.getAxisCount()]));
+  }
+
+  /**
+   * Publishes the observation of a read of the state, replacing the current
+   * state and the last observation
+   *
+   * @param observation the observation
+   * @return the code of the observed state
+   */
+  protected int publish(Observation observation) {
+    this.lastObservation = observation;
+    this.currentState = observation.getValues();
+    return observation.getStateCode();
+  }
+
+  /**
+   * Returns the observation of the last read of the state, without reading the
+   * state again. After {@link #awaitSettled()}, this is the observation of the
+   * settled state.
+   *
+   * @return the last observation, or null if the state has not been read yet
+   */
+  public Observation getLastObservation() {
+    return lastObservation;
+  }
+
+  /**
+   * Appends the transition from a state by an action to the last read state to a
+   * transition log, with the measurements of the last read
+   *
+   * @param log the transition log
+   * @param source the source of the transition, e.g. {@link #getTrainingSource()}
+   * @param previousState the state before the action
+   * @param action the action
+   * @param reward the reward of the transition, or NaN if it is not known
+   */
+  public void logTransition(TransitionLog.Writer log, int source, int previousState, int action, double reward) {
+    Observation observation = getLastObservation();
+    if (observation != null) {
+      log.append(observation.getTimestamp(), previousState, action, observation.getStateCode(),
+        observation.getZ1Lux(), observation.getZ2Lux(), observation.getSunshineLux(), reward,
+        observation.getEnergyCost(), source);
+    }
+  }
+
+  /**
+   * Returns the source of the transitions of the training on the environment in a
+   * transition log, which tells the clock of the timestamps of the observations
+   *
+   * @return {@link TransitionLog#SOURCE_LAB}, for a lab whose timestamps are wall-clock milliseconds
+   */
+  public int getTrainingSource() {
+    return TransitionLog.SOURCE_LAB;
+  }
+
+  /**
+   * Reads the state once and returns the observation of the read
+   *
+   * @return the observation, or null if the state cannot be read
+   */
+  public Observation observe() {
+    readCurrentState();
+    return getLastObservation();
+  }
+
   /**
    * Returns the size of the action space
    *
@@ -73,6 +201,10 @@ public abstract class LearningEnvironment {
    * only compatible state is described as [3,3,0,0,1,1,2].
    * </p>
    * <p>
+   * E.g., if the substate description is [3,3,null,null,null,null,2], then
+   * compatible states are all the states described as [3,3,_,_,_,_,2].
+   * </p>
+   * <p>
    * Each compatible state is represented as an integer value that corresponds to
    * the position of the state in the state space set (e.g. the state
    * [0,0,0,0,0,0,1]
@@ -82,14 +214,17 @@ public abstract class LearningEnvironment {
    * @param stateDescription the description of the substate
    * @return the list of integer values that represent the compatible states
    */
-  public abstract List<Integer> getCompatibleStates(List<Object> stateDescription);
+  public List<Integer> getCompatibleStates(List<Object> stateDescription) {
+    return compatibleStateIndex.getCompatibleStates(stateDescription);
+  }
 
   /**
    * Returns the current state of the environment.
    * <p>
    * The state is represented as
    * an integer value that corresponds to the position of the state in the state
-   * space.
+   * space. Implementations make an {@link Observation} of each read available
+   * through {@link #getLastObservation()}.
    * </p>
    *
    * @return the current state
@@ -120,9 +255,80 @@ public abstract class LearningEnvironment {
    * </p>
    *
    * @param state the state
-   * @return the applicable actions
+   * @return the applicable actions as an unmodifiable list
    */
-  public abstract List<Integer> getApplicableActions(int state);
+  public List<Integer> getApplicableActions(int state) {
+    return applicableActionLists.get(state);
+  }
+
+  /**
+   * Returns the actions that are applicable in a given state without allocating.
+   * <p>
+   * The returned array is shared by all callers and must not be modified.
+   * </p>
+   *
+   * @param state the state
+   * @return the keys of the applicable actions in ascending order
+   */
+  public int[] getApplicableActionIds(int state) {
+    return applicableActionIds[state];
+  }
+
+  /**
+   * Returns the actions that are applicable in a given state as a bitmask,
+   * where the bit {@code 1L << action} is set if the action is applicable
+   *
+   * @param state the state
+   * @return the bitmask of the applicable actions
+   */
+  public long getApplicableActionMask(int state) {
+    return applicableActionMasks[state];
+  }
+
+  /**
+   * Builds the table of applicable actions for every state of the state space.
+   * <p>
+   * An action is applicable in a state if the value of the state on the axis
+   * {@link Action#getApplicableOnStateAxis()} equals
+   * {@link Action#getApplicableOnStateValue()}. Concrete environments call this
+   * method once, after creating the state codec and the action space.
+   * </p>
+   */
+  protected void indexApplicableActions() {
+    int stateCount = stateCodec.getStateCount();
+    int actionCount = actionSpace.size();
+
+    if (actionCount > Long.SIZE) {
+      throw new IllegalStateException("At most " + Long.SIZE + " actions are supported, got " + actionCount);
+    }
+
+    int[][] ids = new int[stateCount][];
+    long[] masks = new long[stateCount];
+    List<List<Integer>> lists = new ArrayList<>(stateCount);
+    int[] buffer = new int[actionCount];
+
+    for (int state = 0; state < stateCount; state++) {
+      int count = 0;
+      for (int action = 0; action < actionCount; action++) {
+        Action a = actionSpace.get(action);
+        if (stateCodec.axisValue(state, a.getApplicableOnStateAxis()) == a.getApplicableOnStateValue()) {
+          buffer[count++] = action;
+          masks[state] |= 1L << action;
+        }
+      }
+      ids[state] = Arrays.copyOf(buffer, count);
+
+      List<Integer> list = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        list.add(buffer[i]);
+      }
+      lists.add(Collections.unmodifiableList(list));
+    }
+
+    this.applicableActionIds = ids;
+    this.applicableActionMasks = masks;
+    this.applicableActionLists = Collections.unmodifiableList(lists);
+  }
 
   /**
    * Performs an action in the environment.
@@ -135,4 +341,102 @@ public abstract class LearningEnvironment {
    */
   public abstract void performAction(int action);
 
+  /**
+   * Waits until the effects of the last performed action have settled, and
+   * returns the settled state.
+   * <p>
+   * The default implementation reads the current state immediately, which suits
+   * environments that apply actions synchronously.
+   * </p>
+   *
+   * @return the settled state
+   */
+  public int awaitSettled() {
+    return readCurrentState();
+  }
+
+  /**
+   * Reads the current state without blocking the calling thread.
+   * <p>
+   * The default implementation reads the state on the calling thread and
+   * returns a completed future, which suits environments without I/O.
+   * </p>
+   *
+   * @return a future that completes with the code of the current state, or
+   * completes exceptionally if the state cannot be read
+   */
+  public CompletableFuture<Integer> readCurrentStateAsync() {
+    return CompletableFuture.completedFuture(readCurrentState());
+  }
+
+  /**
+   * Performs an action without blocking the calling thread.
+   * <p>
+   * The default implementation performs the action on the calling thread and
+   * returns a completed future.
+   * </p>
+   *
+   * @param action the action
+   * @return a future that completes when the environment has accepted the action
+   */
+  public CompletableFuture<Void> performActionAsync(int action) {
+    performAction(action);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Performs an action and reads the state, without blocking the calling thread.
+   * Several environments can be stepped from a single thread by combining the
+   * returned futures, see {@link VectorizedEnvironment}.
+   * <p>
+   * The default implementation performs the action and then reads the state.
+   * Environments with I/O send the read without waiting for the response to the
+   * action, so the state may not reflect the effects of the action yet; unlike
+   * {@link #awaitSettled()}, the state is read only once.
+   * </p>
+   *
+   * @param action the action
+   * @return a future that completes with the code of the state read with the
+   * action, or completes exceptionally if the action or the read fails
+   */
+  public CompletableFuture<Integer> performActionAndReadAsync(int action) {
+    return performActionAsync(action).thenCompose(accepted -> readCurrentStateAsync());
+  }
+
+  /**
+   * Maps lux values to light levels:
+   * lux &lt; 50 -&gt; level 0
+   * lux in [50,100) -&gt; level 1
+   * lux in [100,300) -&gt; level 2
+   * lux &gt;= 300 -&gt; level 3
+   */
+  protected static int discretizeLightLevel(double value) {
+    if (value < 50) {
+      return 0;
+    } else if (value < 100) {
+      return 1;
+    } else if (value < 300) {
+      return 2;
+    }
+    return 3;
+  }
+
+  /**
+   * Maps lux values to sunshine levels:
+   * lux &lt; 50 -&gt; level 0
+   * lux in [50,200) -&gt; level 1
+   * lux in [200,700) -&gt; level 2
+   * lux &gt;= 700 -&gt; level 3
+   */
+  protected static int discretizeSunshine(double value) {
+    if (value < 50) {
+      return 0;
+    } else if (value < 200) {
+      return 1;
+    } else if (value < 700) {
+      return 2;
+    }
+    return 3;
+  }
+
 }
@@ -0,0 +1,459 @@
+package tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.*;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * A registry of the metrics of training and controlling learning environments.
+ *
+ * <p>
+ * The registry counts the training steps, episodes, replayed and planning updates and derives their rates,
+ * records the latencies of the Status reads and of the actions of a {@link Lab}
+ * and the times it takes the lab to settle, and tracks the number of steps
+ * needed to reach a goal and the mean absolute change of the Q values per
+ * episode, which shows the convergence of the training.
+ * </p>
+ * <p>
+ * Recording only updates striped counters, so that concurrent trainers do not
+ * contend. Each artifact records to its own registry, which it shares with its
+ * lab, publishes as observable properties and registers over JMX with
+ * {@link #register} as {@value #OBJECT_TYPE} and a {@code name} key, e.g.
+ * {@code tools:type=LearningMetrics,name=EnvironmentHelper-helper}.
+ * </p>
+ */
+public class LearningMetrics implements LearningMetricsMBean {
+
+  private static final Logger LOGGER = Logger.getLogger(LearningMetrics.class.getName());
+
+  /**
+   * The JMX name of the registries, without the name key
+   */
+  public static final String OBJECT_TYPE = "tools:type=LearningMetrics";
+
+  /**
+   * A count of events whose rate is measured over windows of at least one second
+   */
+  public static final class Meter {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongAdder count = new LongAdder();
+
+    private long windowStart = System.nanoTime();
+    private long windowCount;
+    private double rate;
+
+    public void mark() {
+      count.increment();
+    }
+
+    public void mark(long events) {
+      count.add(events);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    /**
+     * Returns the rate of the events over the last completed window
+     *
+     * @return the events per second
+     */
+    public synchronized double getRate() {
+      long now = System.nanoTime();
+      long elapsed = now - windowStart;
+      if (elapsed >= WINDOW_NANOS) {
+        long total = count.sum();
+        rate = (total - windowCount) * 1e9 / elapsed;
+        windowStart = now;
+        windowCount = total;
+      }
+      return rate;
+    }
+
+    synchronized void reset() {
+      count.reset();
+      windowStart = System.nanoTime();
+      windowCount = 0;
+      rate = 0;
+    }
+  }
+
+  /**
+   * A histogram of non-negative values, with buckets that double in width, so
+   * that percentiles are reported within a factor of two
+   */
+  public static final class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value
+     *
+     * @param value the value, where negative values are recorded as 0
+     */
+    public void record(long value) {
+      value = Math.max(0, value);
+      buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+      count.increment();
+      sum.add(value);
+      max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public double getMean() {
+      long n = count.sum();
+      return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * Returns an upper bound of a percentile of the recorded values
+     *
+     * @param percentile the percentile in the range [0, 100]
+     * @return the upper bound of the bucket of the percentile, or 0 if no values were recorded
+     */
+    public long getPercentile(double percentile) {
+      long n = count.sum();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100 * n);
+      long seen = 0;
+      for (int bucket = 0; bucket < buckets.length(); bucket++) {
+        seen += buckets.get(bucket);
+        if (seen >= rank) {
+          return Math.min(bucket == 0 ? 0 : (1L << bucket) - 1, getMax());
+        }
+      }
+      return getMax();
+    }
+
+    void reset() {
+      for (int bucket = 0; bucket < buckets.length(); bucket++) {
+        buckets.set(bucket, 0);
+      }
+      count.reset();
+      sum.reset();
+      max.set(0);
+    }
+  }
+
+  private final Meter steps = new Meter();
+  private final Meter episodes = new Meter();
+  private final Meter replayUpdates = new Meter();
+  private final Meter planningUpdates = new Meter();
+  private final Histogram statusReadMicros = new Histogram();
+  private final Histogram actionMicros = new Histogram();
+  private final Histogram settleMillis = new Histogram();
+  private final LongAdder settleTimeouts = new LongAdder();
+  private final Histogram stepsToGoal = new Histogram();
+  private volatile double meanAbsoluteQChange;
+
+  /**
+   * Creates a registry and registers it with the platform MBean server, replacing
+   * a registry that was registered under the same name before
+   *
+   * @param name the value of the name key, e.g. the type and name of the artifact
+   * @return the registry
+   */
+  public static synchronized LearningMetrics register(String name) {
+    LearningMetrics metrics = new LearningMetrics();
+    try {
+      ObjectName objectName = getObjectName(name);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(metrics, objectName);
+    } catch (JMException e) {
+      LOGGER.warning("The learning metrics " + name + " cannot be published over JMX: " + e.getMessage());
+    }
+    return metrics;
+  }
+
+  /**
+   * Unregisters a registry from the platform MBean server, e.g. when its artifact is disposed
+   *
+   * @param name the value of the name key the registry was registered with
+   */
+  public static synchronized void unregister(String name) {
+    try {
+      ObjectName objectName = getObjectName(name);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.warning("The learning metrics " + name + " cannot be unregistered: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the JMX name of a registry
+   *
+   * @param name the value of the name key
+   * @return the name, e.g. tools:type=LearningMetrics,name=QLearner-learner
+   * @throws MalformedObjectNameException if the name cannot be used as a key
+   */
+  public static ObjectName getObjectName(String name) throws MalformedObjectNameException {
+    return new ObjectName(OBJECT_TYPE + ",name=" + ObjectName.quote(name));
+  }
+
+  /**
+   * Records a training step
+   */
+  public void recordStep() {
+    steps.mark();
+  }
+
+  /**
+   * Records several training steps, e.g. one per environment of a batch
+   *
+   * @param count the number of steps
+   */
+  public void recordSteps(int count) {
+    steps.mark(count);
+  }
+
+  /**
+   * Records the Q-learning updates of transitions replayed from a {@link ReplayBuffer}
+   *
+   * @param count the number of updates
+   */
+  public void recordReplayUpdates(int count) {
+    replayUpdates.mark(count);
+  }
+
+  /**
+   * Records the Q-learning updates of transitions simulated by a {@link TransitionModel}
+   *
+   * @param count the number of updates
+   */
+  public void recordPlanningUpdates(int count) {
+    planningUpdates.mark(count);
+  }
+
+  /**
+   * Records a completed episode
+   *
+   * @param meanAbsoluteQChange the mean absolute change of the updated Q values in the episode
+   */
+  public void recordEpisode(double meanAbsoluteQChange) {
+    episodes.mark();
+    this.meanAbsoluteQChange = meanAbsoluteQChange;
+  }
+
+  /**
+   * Records an episode that reached the goal
+   *
+   * @param steps the number of steps it took to reach the goal
+   */
+  public void recordGoalReached(int steps) {
+    stepsToGoal.record(steps);
+  }
+
+  /**
+   * Records the round-trip time of a read of the Status property
+   *
+   * @param nanos the round-trip time in nanoseconds
+   */
+  public void recordStatusRead(long nanos) {
+    statusReadMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  /**
+   * Records the round-trip time of an action
+   *
+   * @param nanos the round-trip time in nanoseconds
+   */
+  public void recordAction(long nanos) {
+    actionMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  /**
+   * Records the time it took an environment to settle after an action
+   *
+   * @param millis the settle time in milliseconds
+   * @param timedOut whether the environment did not settle before the deadline
+   */
+  public void recordSettle(long millis, boolean timedOut) {
+    settleMillis.record(millis);
+    if (timedOut) {
+      settleTimeouts.increment();
+    }
+  }
+
+  public Meter getStepMeter() {
+    return steps;
+  }
+
+  public Meter getEpisodeMeter() {
+    return episodes;
+  }
+
+  public Meter getReplayUpdateMeter() {
+    return replayUpdates;
+  }
+
+  public Meter getPlanningUpdateMeter() {
+    return planningUpdates;
+  }
+
+  public Histogram getStatusReadMicros() {
+    return statusReadMicros;
+  }
+
+  public Histogram getActionMicros() {
+    return actionMicros;
+  }
+
+  public Histogram getSettleMillisHistogram() {
+    return settleMillis;
+  }
+
+  public Histogram getStepsToGoal() {
+    return stepsToGoal;
+  }
+
+  @Override
+  public long getSteps() {
+    return steps.getCount();
+  }
+
+  @Override
+  public long getEpisodes() {
+    return episodes.getCount();
+  }
+
+  @Override
+  public double getStepsPerSecond() {
+    return steps.getRate();
+  }
+
+  @Override
+  public double getEpisodesPerSecond() {
+    return episodes.getRate();
+  }
+
+  @Override
+  public long getReplayUpdates() {
+    return replayUpdates.getCount();
+  }
+
+  @Override
+  public long getPlanningUpdates() {
+    return planningUpdates.getCount();
+  }
+
+  @Override
+  public long getStatusReads() {
+    return statusReadMicros.getCount();
+  }
+
+  @Override
+  public double getStatusReadMeanMillis() {
+    return statusReadMicros.getMean() / 1000;
+  }
+
+  @Override
+  public double getStatusReadP99Millis() {
+    return statusReadMicros.getPercentile(99) / 1000.0;
+  }
+
+  @Override
+  public long getActions() {
+    return actionMicros.getCount();
+  }
+
+  @Override
+  public double getActionMeanMillis() {
+    return actionMicros.getMean() / 1000;
+  }
+
+  @Override
+  public double getActionP99Millis() {
+    return actionMicros.getPercentile(99) / 1000.0;
+  }
+
+  @Override
+  public long getSettles() {
+    return settleMillis.getCount();
+  }
+
+  @Override
+  public long getSettleTimeouts() {
+    return settleTimeouts.sum();
+  }
+
+  @Override
+  public double getSettleMeanMillis() {
+    return settleMillis.getMean();
+  }
+
+  @Override
+  public double getSettleP99Millis() {
+    return settleMillis.getPercentile(99);
+  }
+
+  @Override
+  public long getGoalsReached() {
+    return stepsToGoal.getCount();
+  }
+
+  @Override
+  public double getMeanStepsToGoal() {
+    return stepsToGoal.getMean();
+  }
+
+  @Override
+  public double getMeanAbsoluteQChange() {
+    return meanAbsoluteQChange;
+  }
+
+  @Override
+  public void reset() {
+    steps.reset();
+    episodes.reset();
+    replayUpdates.reset();
+    planningUpdates.reset();
+    statusReadMicros.reset();
+    actionMicros.reset();
+    settleMillis.reset();
+    settleTimeouts.reset();
+    stepsToGoal.reset();
+    meanAbsoluteQChange = 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Steps: %d (%.1f/s), Episodes: %d (%.2f/s), Replayed updates: %d, Planning updates: %d, Status reads: %d (mean %.1f ms, p99 %.1f ms), "
+      + "Actions: %d (mean %.1f ms, p99 %.1f ms), Settles: %d (mean %.0f ms, %d timeouts), "
+      + "Goals reached: %d (mean %.1f steps), Mean |dQ|: %.4f",
+      getSteps(), getStepsPerSecond(), getEpisodes(), getEpisodesPerSecond(),
+      getReplayUpdates(), getPlanningUpdates(),
+      getStatusReads(), getStatusReadMeanMillis(), getStatusReadP99Millis(),
+      getActions(), getActionMeanMillis(), getActionP99Millis(),
+      getSettles(), getSettleMeanMillis(), getSettleTimeouts(),
+      getGoalsReached(), getMeanStepsToGoal(), getMeanAbsoluteQChange());
+  }
+}
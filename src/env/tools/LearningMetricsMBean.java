@@ -0,0 +1,48 @@
+package tools;
+
+/**
+ * The management interface of {@link LearningMetrics}, through which the
+ * metrics are published over JMX.
+ */
+public interface LearningMetricsMBean {
+
+  long getSteps();
+
+  long getEpisodes();
+
+  double getStepsPerSecond();
+
+  double getEpisodesPerSecond();
+
+  long getReplayUpdates();
+
+  long getPlanningUpdates();
+
+  long getStatusReads();
+
+  double getStatusReadMeanMillis();
+
+  double getStatusReadP99Millis();
+
+  long getActions();
+
+  double getActionMeanMillis();
+
+  double getActionP99Millis();
+
+  long getSettles();
+
+  long getSettleTimeouts();
+
+  double getSettleMeanMillis();
+
+  double getSettleP99Millis();
+
+  long getGoalsReached();
+
+  double getMeanStepsToGoal();
+
+  double getMeanAbsoluteQChange();
+
+  void reset();
+}
@@ -0,0 +1,122 @@
+package tools;
+
+import java.util.*;
+
+/**
+ * An immutable snapshot of a {@link LearningEnvironment}, taken by a single
+ * read of its state.
+ *
+ * <p>
+ * An observation holds the code of the discretized state, the axis values of
+ * the state, and the raw measurements the state was discretized from: the
+ * illuminance of both zones and of the sunshine in lux, and the energy cost of
+ * the last update. Measurements that an environment does not report are
+ * {@link Double#NaN}. Since an observation never changes, the reward, the goal
+ * test and the Q-update of a training step can all consume the same snapshot,
+ * even while the environment is read concurrently.
+ * </p>
+ */
+public final class Observation {
+
+  private final int stateCode;
+  private final int[] values;
+  private final double z1Lux;
+  private final double z2Lux;
+  private final double sunshineLux;
+  private final double energyCost;
+  private final long timestamp;
+
+  /**
+   * Constructs an observation
+   *
+   * @param stateCode the code of the state
+   * @param values the axis values of the state, e.g. [0,1,0,1,0,0,2]
+   * @param z1Lux the illuminance of Zone 1 in lux
+   * @param z2Lux the illuminance of Zone 2 in lux
+   * @param sunshineLux the illuminance of the sunshine in lux
+   * @param energyCost the energy cost of the last update
+   * @param timestamp the time of the observation in milliseconds
+   */
+  public Observation(int stateCode, int[] values, double z1Lux, double z2Lux, double sunshineLux,
+    double energyCost, long timestamp) {
+    this.stateCode = stateCode;
+    this.values = values.clone();
+    this.z1Lux = z1Lux;
+    this.z2Lux = z2Lux;
+    this.sunshineLux = sunshineLux;
+    this.energyCost = energyCost;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Constructs an observation of a state without raw measurements
+   *
+   * @param codec the codec of the state
+   * @param stateCode the code of the state
+   * @param timestamp the time of the observation in milliseconds
+   * @return the observation
+   */
+  public static Observation ofState(StateCodec codec, int stateCode, long timestamp) {
+    return new Observation(stateCode, codec.decode(stateCode, new int[codec.getAxisCount()]),
+      Double.NaN, Double.NaN, Double.NaN, Double.NaN, timestamp);
+  }
+
+  /**
+   * Returns the code of the state
+   *
+   * @return the state code
+   */
+  public int getStateCode() {
+    return stateCode;
+  }
+
+  /**
+   * Returns the value of an axis of the state
+   *
+   * @param axis the axis
+   * @return the value of the axis
+   */
+  public int getValue(int axis) {
+    return values[axis];
+  }
+
+  /**
+   * Returns the axis values of the state
+   *
+   * @return an unmodifiable list of the axis values, e.g. [0,1,0,1,0,0,2]
+   */
+  public List<Integer> getValues() {
+    Integer[] boxed = new Integer[values.length];
+    for (int axis = 0; axis < values.length; axis++) {
+      boxed[axis] = values[axis];
+    }
+    return Collections.unmodifiableList(Arrays.asList(boxed));
+  }
+
+  public double getZ1Lux() {
+    return z1Lux;
+  }
+
+  public double getZ2Lux() {
+    return z2Lux;
+  }
+
+  public double getSunshineLux() {
+    return sunshineLux;
+  }
+
+  public double getEnergyCost() {
+    return energyCost;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public String toString() {
+    return "Observation[state=" + stateCode + " " + Arrays.toString(values) + ", z1Lux=" + z1Lux
+      + ", z2Lux=" + z2Lux + ", sunshineLux=" + sunshineLux + ", energyCost=" + energyCost
+      + ", timestamp=" + timestamp + "]";
+  }
+}
@@ -0,0 +1,166 @@
+package tools;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A registry of the compiled {@link GreedyPolicy} of each goal, indexed by the
+ * dense goal id.
+ *
+ * <p>
+ * The {@link QLearner} registers the policy of a goal whenever it has computed
+ * or loaded the Q matrix of the goal, and the artifacts that control the lab,
+ * such as the {@link EnvironmentHelper}, look the policies up. Each learner has
+ * a registry of its own, which the controlling artifacts look up by the name of
+ * the learner artifact with {@link #forLearner}, so that learners of different
+ * environments do not replace each other's policies. Registering replaces the
+ * policy of a goal atomically, so a lookup sees either the old or the new policy.
+ * </p>
+ * <p>
+ * The registry also carries the transitions of the lab caused by the actions of
+ * the policies back to the learner: the controlling artifacts record them, and
+ * the {@link QLearner} of the registry drains them into its transition model and replay buffers.
+ * The queue of the transitions is bounded, and the oldest transitions are dropped
+ * when it is full.
+ * </p>
+ */
+public final class PolicyRegistry {
+
+  private static final int CONTROL_TRANSITION_CAPACITY = 10000;
+
+  private static final Map<String, PolicyRegistry> learnerRegistries = new HashMap<>();
+
+  private final StateCodec codec;
+  private final AtomicReferenceArray<GreedyPolicy> policies;
+  private final ArrayBlockingQueue<int[]> controlTransitions = new ArrayBlockingQueue<>(CONTROL_TRANSITION_CAPACITY);
+  private final AtomicLong droppedControlTransitions = new AtomicLong();
+
+  /**
+   * Constructs an empty registry
+   *
+   * @param codec the codec of the states of the policies
+   */
+  public PolicyRegistry(StateCodec codec) {
+    this.codec = codec;
+    this.policies = new AtomicReferenceArray<>(GreedyPolicy.goalCount(codec));
+  }
+
+  /**
+   * Returns the registry of a learner, creating it on the first call, so that a
+   * controlling artifact can look it up before the learner has been created
+   *
+   * @param learnerName the name of the learner artifact, e.g. "qlearner"
+   * @return the registry of the learner, for the states of {@link StateCodec#LAB}
+   */
+  public static synchronized PolicyRegistry forLearner(String learnerName) {
+    return learnerRegistries.computeIfAbsent(learnerName, name -> new PolicyRegistry(StateCodec.LAB));
+  }
+
+  /**
+   * Removes the registry of a learner, e.g. when the learner artifact is disposed
+   *
+   * @param learnerName the name of the learner artifact
+   */
+  public static synchronized void remove(String learnerName) {
+    learnerRegistries.remove(learnerName);
+  }
+
+  public StateCodec getStateCodec() {
+    return codec;
+  }
+
+  /**
+   * Registers the policy of a goal, replacing the previous one
+   *
+   * @param policy the policy
+   */
+  public void register(GreedyPolicy policy) {
+    if (policy.getStateCodec().getVersion() != codec.getVersion()) {
+      throw new IllegalArgumentException("The policy does not use the states of the registry: " + policy);
+    }
+    policies.set(policy.getGoalId(), policy);
+  }
+
+  /**
+   * Returns the policy of a goal
+   *
+   * @param goalId the dense id of the goal, see {@link GreedyPolicy#goalId}
+   * @return the policy, or null if none has been registered
+   */
+  public GreedyPolicy get(int goalId) {
+    return policies.get(goalId);
+  }
+
+  /**
+   * Returns the policy of a goal
+   *
+   * @param z1Level the desired light level of Zone 1
+   * @param z2Level the desired light level of Zone 2
+   * @return the policy, or null if none has been registered
+   */
+  public GreedyPolicy get(int z1Level, int z2Level) {
+    return policies.get(GreedyPolicy.goalId(codec, z1Level, z2Level));
+  }
+
+  /**
+   * Records a transition of the lab caused by an action of the policy of a goal
+   *
+   * @param goalId the dense id of the goal, see {@link GreedyPolicy#goalId}
+   * @param state the state the action was performed in
+   * @param action the action id of the policy
+   * @param nextState the state read after the action
+   */
+  public void recordControlTransition(int goalId, int state, int action, int nextState) {
+    int[] transition = {goalId, state, action, nextState};
+    while (!controlTransitions.offer(transition)) {
+      if (controlTransitions.poll() != null) {
+        droppedControlTransitions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes the recorded transitions and passes them to a consumer, in the order
+   * in which they were recorded
+   *
+   * @param consumer the consumer of the transitions
+   * @return the number of transitions
+   */
+  public int drainControlTransitions(ControlTransitionConsumer consumer) {
+    int count = 0;
+    for (int[] transition = controlTransitions.poll(); transition != null; transition = controlTransitions.poll()) {
+      consumer.accept(transition[0], transition[1], transition[2], transition[3]);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of recorded transitions that were dropped before they were drained
+   *
+   * @return the number of dropped transitions
+   */
+  public long getDroppedControlTransitions() {
+    return droppedControlTransitions.get();
+  }
+
+  /**
+   * A consumer of the transitions recorded in a registry
+   */
+  @FunctionalInterface
+  public interface ControlTransitionConsumer {
+
+    /**
+     * Consumes a transition
+     *
+     * @param goalId the dense id of the goal whose policy chose the action
+     * @param state the state the action was performed in
+     * @param action the action id
+     * @param nextState the state read after the action
+     */
+    void accept(int goalId, int state, int action, int nextState);
+  }
+}
@@ -0,0 +1,338 @@
+package tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.*;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.ManagedHttpClientConnectionFactory;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.io.ManagedHttpClientConnection;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.ParseException;
+import org.apache.hc.core5.http.io.HttpConnectionFactory;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import ch.unisg.ics.interactions.wot.td.clients.TDHttpRequest;
+import ch.unisg.ics.interactions.wot.td.clients.TDHttpResponse;
+
+/**
+ * An HTTP transport that executes the requests of W3C Web of Things Thing
+ * Descriptions over a shared pool of keep-alive connections.
+ *
+ * <p>
+ * {@link TDHttpRequest#execute()} opens a new client (and a new connection) per
+ * request. The transport instead sends the requests through one client whose
+ * connection pool is bounded per route, so that the Status reads and action
+ * invocations of a {@link Lab} reuse their connections. The number of executed
+ * requests and of opened connections are counted, so that the reuse of the
+ * pool can be reported.
+ * </p>
+ * <p>
+ * Requests can also be executed asynchronously, with the same limits and
+ * timeouts, over a non-blocking client that is started on the first
+ * asynchronous request. Asynchronous requests return a {@link CompletableFuture},
+ * so that an action and the following Status read can be pipelined, and several
+ * labs can be driven from a single thread.
+ * </p>
+ * <p>
+ * The default transport, shared by all labs of the JVM, is configured with the
+ * system properties {@code lab.http.maxTotal}, {@code lab.http.maxPerRoute},
+ * {@code lab.http.connectTimeout}, {@code lab.http.responseTimeout} and
+ * {@code lab.http.keepAlive} (timeouts in milliseconds).
+ * </p>
+ */
+public class PooledHttpTransport implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(PooledHttpTransport.class.getName());
+
+  private static PooledHttpTransport defaultTransport;
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient client;
+  private final RequestConfig requestConfig;
+
+  private final int maxTotal;
+  private final int maxPerRoute;
+  private final long keepAliveMillis;
+
+  /**
+  * The non-blocking client, created on the first asynchronous request
+  */
+  private PoolingAsyncClientConnectionManager asyncConnectionManager;
+  private CloseableHttpAsyncClient asyncClient;
+
+  private final LongAdder requestCount = new LongAdder();
+  private final LongAdder connectionCount = new LongAdder();
+  private final LongAdder asyncRequestCount = new LongAdder();
+
+  /**
+   * Constructs a transport
+   *
+   * @param maxTotal the maximum number of pooled connections
+   * @param maxPerRoute the maximum number of pooled connections per route (i.e. per lab)
+   * @param connectTimeoutMillis the timeout for establishing a connection
+   * @param responseTimeoutMillis the timeout for waiting for a response
+   * @param keepAliveMillis how long an idle connection is kept open
+   */
+  public PooledHttpTransport(int maxTotal, int maxPerRoute, long connectTimeoutMillis,
+    long responseTimeoutMillis, long keepAliveMillis) {
+
+    this.maxTotal = maxTotal;
+    this.maxPerRoute = maxPerRoute;
+    this.keepAliveMillis = keepAliveMillis;
+
+    HttpConnectionFactory<ManagedHttpClientConnection> connectionFactory = socket -> {
+      connectionCount.increment();
+      return ManagedHttpClientConnectionFactory.INSTANCE.createConnection(socket);
+    };
+
+    this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+      .setConnectionFactory(connectionFactory)
+      .setMaxConnTotal(maxTotal)
+      .setMaxConnPerRoute(maxPerRoute)
+      .setValidateAfterInactivity(TimeValue.ofSeconds(1))
+      .build();
+
+    this.requestConfig = RequestConfig.custom()
+      .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMillis))
+      .setResponseTimeout(Timeout.ofMilliseconds(responseTimeoutMillis))
+      .setConnectionRequestTimeout(Timeout.ofMilliseconds(connectTimeoutMillis))
+      .build();
+
+    this.client = HttpClients.custom()
+      .setConnectionManager(connectionManager)
+      .setDefaultRequestConfig(requestConfig)
+      .setKeepAliveStrategy((response, context) -> TimeValue.ofMilliseconds(keepAliveMillis))
+      .evictIdleConnections(TimeValue.ofMilliseconds(keepAliveMillis))
+      .build();
+  }
+
+  /**
+   * Returns the transport shared by all the labs of the JVM
+   *
+   * @return the default transport
+   */
+  public static synchronized PooledHttpTransport getDefault() {
+    if (defaultTransport == null) {
+      defaultTransport = new PooledHttpTransport(
+        Integer.getInteger("lab.http.maxTotal", 20),
+        Integer.getInteger("lab.http.maxPerRoute", 4),
+        Long.getLong("lab.http.connectTimeout", 5000L),
+        Long.getLong("lab.http.responseTimeout", 10000L),
+        Long.getLong("lab.http.keepAlive", 30000L));
+    }
+    return defaultTransport;
+  }
+
+  /**
+   * Executes a request of a Thing Description over a pooled connection
+   *
+   * @param request the request, whose method, target and headers are used
+   * @param jsonPayload the JSON payload of the request, or null to send no payload
+   * @return the response, whose payload has been read completely
+   * @throws IOException if the request fails
+   */
+  public TDHttpResponse execute(TDHttpRequest request, String jsonPayload) throws IOException {
+    HttpUriRequestBase httpRequest = new HttpUriRequestBase(request.getMethodName(), URI.create(request.getTarget()));
+    httpRequest.setConfig(requestConfig);
+
+    Map<String, String> headers = request.getHeaders();
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        httpRequest.setHeader(header.getKey(), header.getValue());
+      }
+    }
+    if (jsonPayload != null) {
+      httpRequest.setEntity(new StringEntity(jsonPayload, ContentType.APPLICATION_JSON));
+    }
+
+    requestCount.increment();
+    try (CloseableHttpResponse response = client.execute(httpRequest)) {
+      // read the payload completely, so that the connection is released to the pool
+      BasicClassicHttpResponse buffered = new BasicClassicHttpResponse(response.getCode(), response.getReasonPhrase());
+      for (Header header : response.getHeaders()) {
+        buffered.addHeader(header);
+      }
+      if (response.getEntity() != null) {
+        String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        ContentType contentType = response.getEntity().getContentType() != null
+          ? ContentType.parse(response.getEntity().getContentType())
+          : ContentType.APPLICATION_JSON;
+        buffered.setEntity(new StringEntity(body, contentType));
+      }
+      return new TDHttpResponse(buffered);
+    } catch (ParseException e) {
+      throw new IOException("Reading the response of " + request.getTarget() + " failed: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Executes a request of a Thing Description asynchronously over a pooled connection
+   *
+   * @param request the request, whose method, target and headers are used
+   * @param jsonPayload the JSON payload of the request, or null to send no payload
+   * @return a future that completes with the response, or completes exceptionally
+   * with an IOException if the request fails
+   */
+  public CompletableFuture<TDHttpResponse> executeAsync(TDHttpRequest request, String jsonPayload) {
+    SimpleHttpRequest httpRequest = new SimpleHttpRequest(request.getMethodName(), URI.create(request.getTarget()));
+    httpRequest.setConfig(requestConfig);
+
+    Map<String, String> headers = request.getHeaders();
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        httpRequest.setHeader(header.getKey(), header.getValue());
+      }
+    }
+    if (jsonPayload != null) {
+      httpRequest.setBody(jsonPayload, ContentType.APPLICATION_JSON);
+    }
+
+    CompletableFuture<TDHttpResponse> future = new CompletableFuture<>();
+    asyncRequestCount.increment();
+    getAsyncClient().execute(httpRequest, new FutureCallback<SimpleHttpResponse>() {
+
+      @Override
+      public void completed(SimpleHttpResponse response) {
+        // wrap the body, so that it is parsed like the body of a blocking response
+        BasicClassicHttpResponse buffered = new BasicClassicHttpResponse(response.getCode(), response.getReasonPhrase());
+        for (Header header : response.getHeaders()) {
+          buffered.addHeader(header);
+        }
+        if (response.getBody() != null) {
+          ContentType contentType = response.getContentType() != null
+            ? response.getContentType()
+            : ContentType.APPLICATION_JSON;
+          buffered.setEntity(new StringEntity(response.getBodyText(), contentType));
+        }
+        future.complete(new TDHttpResponse(buffered));
+      }
+
+      @Override
+      public void failed(Exception e) {
+        future.completeExceptionally(e instanceof IOException ? e
+          : new IOException("Executing " + request.getTarget() + " failed: " + e.getMessage(), e));
+      }
+
+      @Override
+      public void cancelled() {
+        future.cancel(false);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Returns the non-blocking client, creating and starting it on the first call
+   */
+  private synchronized CloseableHttpAsyncClient getAsyncClient() {
+    if (asyncClient == null) {
+      asyncConnectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+        .setMaxConnTotal(maxTotal)
+        .setMaxConnPerRoute(maxPerRoute)
+        .setValidateAfterInactivity(TimeValue.ofSeconds(1))
+        .build();
+
+      asyncClient = HttpAsyncClients.custom()
+        .setConnectionManager(asyncConnectionManager)
+        .setDefaultRequestConfig(requestConfig)
+        .setKeepAliveStrategy((response, context) -> TimeValue.ofMilliseconds(keepAliveMillis))
+        .evictIdleConnections(TimeValue.ofMilliseconds(keepAliveMillis))
+        .build();
+      asyncClient.start();
+    }
+    return asyncClient;
+  }
+
+  /**
+   * Returns the number of requests executed so far
+   *
+   * @return the number of requests
+   */
+  public long getRequestCount() {
+    return requestCount.sum();
+  }
+
+  /**
+   * Returns the number of asynchronous requests executed so far, which are not
+   * included in the number of requests and in the reuse ratio
+   *
+   * @return the number of asynchronous requests
+   */
+  public long getAsyncRequestCount() {
+    return asyncRequestCount.sum();
+  }
+
+  /**
+   * Returns the number of connections opened so far
+   *
+   * @return the number of connections
+   */
+  public long getConnectionCount() {
+    return connectionCount.sum();
+  }
+
+  /**
+   * Returns the share of requests that were sent over a reused connection
+   *
+   * @return the reuse ratio in the range [0, 1]
+   */
+  public double getReuseRatio() {
+    long requests = getRequestCount();
+    return requests == 0 ? 0.0 : Math.max(0.0, 1.0 - (double) getConnectionCount() / requests);
+  }
+
+  /**
+   * Returns the statistics of the connection pool
+   *
+   * @return the leased, pending, available and maximum number of connections
+   */
+  public PoolStats getPoolStats() {
+    return connectionManager.getTotalStats();
+  }
+
+  @Override
+  public String toString() {
+    return "Requests: " + getRequestCount() + ", Connections: " + getConnectionCount()
+      + ", Reuse: " + String.format("%.1f%%", 100 * getReuseRatio()) + ", Pool: " + getPoolStats()
+      + ", Async requests: " + getAsyncRequestCount();
+  }
+
+  /**
+   * Closes the connections of the pool
+   */
+  @Override
+  public void close() throws IOException {
+    LOGGER.info("Closing the HTTP transport. " + this);
+    client.close();
+    synchronized (this) {
+      if (asyncClient != null) {
+        asyncClient.close();
+      }
+    }
+  }
+}
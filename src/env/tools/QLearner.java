@@ -1,29 +1,100 @@
 package tools;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntPredicate;
 import java.util.logging.*;
 import cartago.Artifact;
 import cartago.OPERATION;
 import cartago.OpFeedbackParam;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 
 
 public class QLearner extends Artifact {
-    private int prevZ1Level = 0; // Default to 0 or another appropriate initial value
-    private int prevZ2Level = 0; // Default to 0 or another appropriate initial value
-  private Lab lab; // the lab environment that will be learnt 
+  private String environmentURL; // the URL of the lab environment that will be learnt
+  private LearningEnvironment lab; // the lab environment that will be learnt 
   private int stateCount; // the number of possible states in the lab environment
   private int actionCount; // the number of possible actions in the lab environment
-  private HashMap<Integer, double[][]> qTables; // a map for storing the qTables computed for different goals
+  private HashMap<Integer, QTable> qTables; // a map for storing the qTables computed for different goals
+  private QTableStore qTableStore; // the store of the qTables that survive restarts
+  private HashMap<Integer, Path> storedQTables; // the files of the stored qTables that have not been loaded yet
+  private LearningMetrics metrics; // the metrics of the training, published as the training_metrics property
+  private String metricsName; // the name of the metrics over JMX
+  private HashMap<Integer, ReplayBuffer> replayBuffers; // the buffers of the transitions experienced for different goals
+  private int replayBatchSize; // the number of buffered transitions replayed after each training step
+  private TransitionModel model; // the model of the transitions observed in the lab, shared by all goals
+  private int planningSteps; // the number of simulated planning updates after each training step
+  private long planningBudgetNanos; // the maximum time of the planning updates after a training step
+  private TransitionLog.Writer transitionLog; // the log the transitions of the training are appended to, or null
+  private PolicyRegistry policies; // the greedy policies compiled from the qTables, looked up by the controlling artifacts by the name of the artifact
+  private int controlGoalId = -1; // the goal of the last action returned by getActionFromState, or -1
+  private int controlState; // the state of the last action returned by getActionFromState
+  private int controlAction; // the last action returned by getActionFromState
+  private boolean training; // whether an operation is waiting for a trainer that uses the lab, the model or the replay buffers
 
   private static final Logger LOGGER = Logger.getLogger(QLearner.class.getName());
 
+  /**
+   * The prefix of environment URLs that select an in-process {@link SimulatedLab}
+   * instead of a {@link Lab}, e.g. "sim:42" for a simulation with seed 42
+   */
+  public static final String SIMULATION_SCHEME = "sim:";
+
+  /**
+   * The default directory of the stored Q tables
+   */
+  public static final String DEFAULT_STORE_DIRECTORY = "qtables";
+
+  /**
+   * The interval in which the training metrics are published while a Q matrix is computed
+   */
+  private static final long METRICS_INTERVAL_MILLIS = 1000;
+
+  /**
+   * The system property that selects the storage of the Q tables (DOUBLE, FLOAT, OFF_HEAP or SPARSE)
+   */
+  public static final String QTABLE_BACKING_PROPERTY = "qtable.backing";
+
+  /**
+   * The system property that sets the number of transitions kept in the replay buffer of a goal
+   */
+  public static final String REPLAY_CAPACITY_PROPERTY = "replay.capacity";
+
+  /**
+   * The system property that sets the number of buffered transitions replayed after each
+   * training step, where 0 only fills the replay buffers
+   */
+  public static final String REPLAY_BATCH_PROPERTY = "replay.batch";
+
+  /**
+   * The system property that sets the number of simulated planning updates (Dyna-Q) after each
+   * training step, where 0 only records the transitions in the model
+   */
+  public static final String PLANNING_STEPS_PROPERTY = "dyna.steps";
+
+  /**
+   * The system property that caps the time of the planning updates after a training step, in
+   * microseconds, where 0 does not cap it
+   */
+  public static final String PLANNING_BUDGET_PROPERTY = "dyna.budget.micros";
+
+  private static final int DEFAULT_REPLAY_CAPACITY = 10000;
+  private static final int DEFAULT_REPLAY_BATCH = 4;
+  private static final int DEFAULT_PLANNING_STEPS = 0;
+  private static final long DEFAULT_PLANNING_BUDGET_MICROS = 1000;
+
   public void init(String environmentURL) {
+    init(environmentURL, DEFAULT_STORE_DIRECTORY);
+  }
+
+  public void init(String environmentURL, String storeDirectory) {
 
-    // the URL of the W3C Thing Description of the lab Thing
-    this.lab = new Lab(environmentURL);
+    // the URL of the W3C Thing Description of the lab Thing, or a simulation URL
+    this.environmentURL = environmentURL;
+    this.lab = createEnvironment(environmentURL);
 
     this.stateCount = this.lab.getStateCount();
     LOGGER.info("Initialized with a state space of n="+ stateCount);
@@ -32,6 +103,50 @@ public class QLearner extends Artifact {
     LOGGER.info("Initialized with an action space of m="+ actionCount);
 
     qTables = new HashMap<>();
+    storedQTables = new HashMap<>();
+    policies = PolicyRegistry.forLearner(getId().getName());
+    transitionLog = TransitionLog.getDefaultWriter();
+    qTableStore = new QTableStore(Paths.get(storeDirectory));
+    replayBuffers = new HashMap<>();
+    replayBatchSize = Integer.getInteger(REPLAY_BATCH_PROPERTY, DEFAULT_REPLAY_BATCH);
+    model = new TransitionModel(stateCount, actionCount);
+    planningSteps = Integer.getInteger(PLANNING_STEPS_PROPERTY, DEFAULT_PLANNING_STEPS);
+    planningBudgetNanos = TimeUnit.MICROSECONDS.toNanos(
+        Long.getLong(PLANNING_BUDGET_PROPERTY, DEFAULT_PLANNING_BUDGET_MICROS));
+
+    // training_metrics(Steps, StepsPerSecond, Episodes, EpisodesPerSecond, MeanStepsToGoal, MeanAbsoluteQChange)
+    metricsName = "QLearner-" + getId().getName();
+    metrics = LearningMetrics.register(metricsName);
+    if (lab instanceof Lab) {
+      ((Lab) lab).setMetrics(metrics);
+    }
+    defineObsProperty("training_metrics", 0L, 0.0, 0L, 0.0, 0.0, 0.0);
+
+    // Register the stored Q tables, which are only mapped when they are used
+    try {
+      for (Map.Entry<Path, QTableStore.Header> stored : qTableStore.list().entrySet()) {
+        QTableStore.Header header = stored.getValue();
+        if (header.getCodecVersion() == lab.getStateCodec().getVersion()
+            && header.getStateCount() == stateCount && header.getActionCount() == actionCount) {
+          storedQTables.put(Arrays.hashCode(toBoxedGoal(header.getGoal())), stored.getKey());
+        } else {
+          LOGGER.warning("Ignoring incompatible Q table " + stored.getKey() + ": " + header);
+        }
+      }
+      LOGGER.info("Found " + storedQTables.size() + " stored Q tables in " + qTableStore.getDirectory());
+    } catch (IOException e) {
+      LOGGER.warning("Failed to list the stored Q tables: " + e.getMessage());
+    }
+  }
+
+  @Override
+  protected void dispose() {
+    if (metricsName != null) {
+      LearningMetrics.unregister(metricsName);
+    }
+    if (policies != null) {
+      PolicyRegistry.remove(getId().getName());
+    }
   }
 
 /**
@@ -59,6 +174,9 @@ public class QLearner extends Artifact {
 **/
 @OPERATION
 public void calculateQ(Object[] goalDescription, Object episodesObj, Object alphaObj, Object gammaObj, Object epsilonObj, Object rewardObj) {
+    if (!beginOperation()) {
+        return;
+    }
 
     // ensure that the right datatypes are used
     Integer episodes = Integer.valueOf(episodesObj.toString());
@@ -67,121 +185,889 @@ public void calculateQ(Object[] goalDescription, Object episodesObj, Object alph
     Double epsilon = Double.valueOf(epsilonObj.toString());
     Integer reward = Integer.valueOf(rewardObj.toString());
 
-    double[][] qTable = initializeQTable();
-
     Integer goalKey = Arrays.hashCode(goalDescription);
+    QTableStore.Header header = createHeader(goalDescription, episodes, alpha, gamma, epsilon, reward);
+
+    // Reuse a stored Q-table that was trained for this goal with the same parameters
+    QTable qTable = loadStoredQTable(goalKey, header);
+    if (qTable != null) {
+        putQTable(goalKey, goalDescription, qTable);
+        LOGGER.info("Q-learning skipped for goal " + Arrays.toString(goalDescription) + ", using the stored Q-table");
+        return;
+    }
+
+    // Train on a separate thread, so that the metrics can be published while training
+    ReplayBuffer replayBuffer = getReplayBuffer(goalKey);
+    ExecutorService trainer = Executors.newSingleThreadExecutor();
+    try {
+        qTable = awaitTraining(trainer.submit(() -> trainQTable(lab, new SplittableRandom(), replayBuffer, model,
+            goalDescription, episodes, alpha, gamma, epsilon, reward)));
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed("Q-learning was interrupted");
+        return;
+    } catch (ExecutionException e) {
+        LOGGER.severe("Q-learning failed: " + e.getCause());
+        failed("Q-learning failed: " + e.getCause());
+        return;
+    } finally {
+        trainer.shutdown();
+    }
+
+    // Save the Q-table for this goal description
+    putQTable(goalKey, goalDescription, qTable);
+    saveQTable(goalKey, header, qTable);
+
+    printQTable(qTable);
+    randomizeState(lab, new Random(), goalDescription);
+    LOGGER.info("Q-learning completed for goal " + Arrays.toString(goalDescription));
+}
 
-    // Run Q-learning algorithm for the specified number of episodes
-    for (int episode = 1; episode <= episodes; episode++) {
-        randomizeState(goalDescription);
+/**
+* Computes the Q matrices of several goal descriptions concurrently, with the same
+* parameters as {@link #calculateQ}. Each goal is trained by a task of a work-stealing
+* pool on its own learning environment instance (created from the URL the artifact was
+* initialized with) and with its own random number generator. The resulting Q matrices
+* are stored as if they had been computed by {@link #calculateQ}.
+*
+*<p>
+* Concurrent training only makes sense on environments that are independent of each
+* other, such as simulated labs ("sim:" URLs): the {@link Lab} instances of a real lab
+* or of a Node-RED simulator all act on the same Thing, so for other URLs the goals are
+* trained one after another on the lab of the artifact. The random number generators of
+* the workers are derived from the seed of the simulation, so a run can be reproduced.
+*</p>
+* @param  goalDescriptions  the goal descriptions (e.g., [[2,3],[0,0]]); if empty, all 16
+* goal descriptions [z1Level, z2Level] are trained
+* @param  episodesObj the number of episodes used for calculating each Q matrix
+* @param  alphaObj the learning rate with range [0,1].
+* @param  gammaObj the discount factor [0,1]
+* @param epsilonObj the exploration probability [0,1]
+* @param rewardObj the reward assigned when reaching the goal state
+**/
+@OPERATION
+public void calculateAllQ(Object[] goalDescriptions, Object episodesObj, Object alphaObj, Object gammaObj, Object epsilonObj, Object rewardObj) {
+    if (!beginOperation()) {
+        return;
+    }
 
-        int currentState = lab.readCurrentState();
+    // ensure that the right datatypes are used
+    int episodes = Integer.parseInt(episodesObj.toString());
+    double alpha = Double.parseDouble(alphaObj.toString());
+    double gamma = Double.parseDouble(gammaObj.toString());
+    double epsilon = Double.parseDouble(epsilonObj.toString());
+    int reward = Integer.parseInt(rewardObj.toString());
+
+    List<Object[]> goals = toGoalDescriptions(goalDescriptions);
+    boolean simulated = environmentURL.startsWith(SIMULATION_SCHEME);
+    if (!simulated) {
+        LOGGER.warning("Training " + goals.size() + " goals one after another, since " + environmentURL
+            + " is not a simulation");
+    }
 
-        int maxSteps = 10000;
-        for (int step = 0; step < maxSteps; step++) {
+    int parallelism = simulated ? Math.max(1, Math.min(goals.size(), Runtime.getRuntime().availableProcessors())) : 1;
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    long start = System.nanoTime();
 
-            List<Integer> applicableActions = lab.getApplicableActions(currentState);
+    try {
+        List<ForkJoinTask<QTable>> tasks = new ArrayList<>();
+        List<TransitionModel> models = new ArrayList<>();
+        for (int i = 0; i < goals.size(); i++) {
+            Object[] goal = goals.get(i);
+            int worker = i;
+            ReplayBuffer replayBuffer = getReplayBuffer(Arrays.hashCode(goal));
+            TransitionModel workerModel = new TransitionModel(stateCount, actionCount);
+            models.add(workerModel);
+            tasks.add(pool.submit(() -> trainQTable(simulated ? createEnvironment(environmentURL, worker) : lab,
+                new SplittableRandom(workerSeed(environmentURL, worker)).split(), replayBuffer, workerModel, goal,
+                episodes, alpha, gamma, epsilon, reward)));
+        }
 
-            if (applicableActions.isEmpty()) {
-                break;
-            }
+        for (int i = 0; i < goals.size(); i++) {
+            Integer goalKey = Arrays.hashCode(goals.get(i));
+            QTable qTable = awaitTraining(tasks.get(i));
+            model.merge(models.get(i));
+            putQTable(goalKey, goals.get(i), qTable);
+            saveQTable(goalKey, createHeader(goals.get(i), episodes, alpha, gamma, epsilon, reward), qTable);
+        }
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed("Q-learning was interrupted");
+        return;
+    } catch (ExecutionException e) {
+        LOGGER.severe("Q-learning failed: " + e.getCause());
+        failed("Q-learning failed: " + e.getCause());
+        return;
+    } finally {
+        pool.shutdown();
+    }
 
-            int action = chooseAction(qTable, currentState, applicableActions, epsilon);
+    LOGGER.info("Q-learning completed for " + goals.size() + " goals on " + parallelism + " workers in "
+        + (System.nanoTime() - start) / 1_000_000 + " ms");
+    LOGGER.info(metrics.toString());
+}
 
-            lab.performAction(action);
+/**
+* Computes the Q matrices of all 16 goal descriptions [z1Level, z2Level] from one
+* stream of transitions of the lab. The episodes pursue the goals in turn, and each
+* transition is relabelled for every goal and updates all 16 Q matrices, so that one
+* training run produces the complete set of policies. The resulting Q matrices are
+* stored as if they had been computed by {@link #calculateQ} with the same parameters.
+*
+* @param  episodesObj the number of episodes, over all goals
+* @param  alphaObj the learning rate with range [0,1].
+* @param  gammaObj the discount factor [0,1]
+* @param epsilonObj the exploration probability [0,1]
+* @param rewardObj the reward assigned when reaching the goal state
+**/
+@OPERATION
+public void calculateAllGoalsQ(Object episodesObj, Object alphaObj, Object gammaObj, Object epsilonObj, Object rewardObj) {
+    if (!beginOperation()) {
+        return;
+    }
 
-            int newState = lab.readCurrentState();
+    // ensure that the right datatypes are used
+    int episodes = Integer.parseInt(episodesObj.toString());
+    double alpha = Double.parseDouble(alphaObj.toString());
+    double gamma = Double.parseDouble(gammaObj.toString());
+    double epsilon = Double.parseDouble(epsilonObj.toString());
+    int reward = Integer.parseInt(rewardObj.toString());
+
+    List<Object[]> goalDescriptions = toGoalDescriptions(null);
+    QTable[] goalTables = new QTable[goalDescriptions.size()];
+    int[][] goals = new int[goalDescriptions.size()][];
+    for (int i = 0; i < goalTables.length; i++) {
+        goalTables[i] = initializeQTable();
+        goals[i] = TrainingEngine.parseGoal(goalDescriptions.get(i));
+    }
 
-            double calculatedReward = calculateReward(goalDescription, reward);
-            double maxQNext = getMaxQ(qTable, newState, lab.getApplicableActions(newState));
+    // Train on a separate thread, so that the metrics can be published while training
+    ExecutorService trainer = Executors.newSingleThreadExecutor();
+    long start = System.nanoTime();
+    try {
+        awaitTraining(trainer.submit(() -> {
+            TrainingEngine engine = new TrainingEngine(lab, new SplittableRandom(), metrics);
+            engine.configure(goalTables[0], goals[0], alpha, gamma, epsilon, reward);
+            engine.setRelabelling(goalTables, goals);
+            engine.setPlanning(model, planningSteps, planningBudgetNanos);
+            engine.setTransitionLog(transitionLog);
+            return engine.train(episodes);
+        }));
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed("Q-learning was interrupted");
+        return;
+    } catch (ExecutionException e) {
+        LOGGER.severe("Q-learning failed: " + e.getCause());
+        failed("Q-learning failed: " + e.getCause());
+        return;
+    } finally {
+        trainer.shutdown();
+    }
+
+    for (int i = 0; i < goalTables.length; i++) {
+        Object[] goalDescription = goalDescriptions.get(i);
+        Integer goalKey = Arrays.hashCode(goalDescription);
+        putQTable(goalKey, goalDescription, goalTables[i]);
+        saveQTable(goalKey, createHeader(goalDescription, episodes, alpha, gamma, epsilon, reward), goalTables[i]);
+    }
+    LOGGER.info("Q-learning completed for " + goalTables.length + " goals from one stream of transitions in "
+        + (System.nanoTime() - start) / 1_000_000 + " ms");
+    LOGGER.info(metrics.toString());
+}
+
+/**
+* Computes a Q matrix against a goal description, with the same parameters as
+* {@link #calculateQ}, by stepping a batch of environments in lockstep. Each
+* iteration of the training loop performs one action on each of the environments
+* and applies the N
+* resulting transitions to the same Q matrix. The environments must be independent
+* of each other: they are either simulations created from the URL the artifact was
+* initialized with, which then must be a "sim:" URL, or the labs of different Thing
+* Descriptions. The labs are stepped as a pipelined {@link VectorizedEnvironment}, which
+* sends the requests to all the labs from one thread over their asynchronous API. Like
+* {@link #calculateQ}, the batch is trained on a separate thread, so that the metrics are
+* published while training.
+*
+* @param  goalDescription  the desired goal against the which the Q matrix is calculated (e.g., [2,3])
+* @param  episodesObj the number of episodes used for calculating the Q matrix, over all environments
+* @param  alphaObj the learning rate with range [0,1].
+* @param  gammaObj the discount factor [0,1]
+* @param epsilonObj the exploration probability [0,1]
+* @param rewardObj the reward assigned when reaching the goal state
+* @param environmentsObj the number of simulations of the batch, or the URLs of the Thing
+* Descriptions of the labs of the batch (e.g., [Url1, Url2])
+**/
+@OPERATION
+public void calculateQBatched(Object[] goalDescription, Object episodesObj, Object alphaObj, Object gammaObj, Object epsilonObj, Object rewardObj, Object environmentsObj) {
+    if (!beginOperation()) {
+        return;
+    }
 
-            // Update Q-value using the Q-learning formula
-            qTable[currentState][action] = qTable[currentState][action] +
-                    alpha * (calculatedReward + gamma * maxQNext - qTable[currentState][action]);
+    // ensure that the right datatypes are used
+    int episodes = Integer.parseInt(episodesObj.toString());
+    double alpha = Double.parseDouble(alphaObj.toString());
+    double gamma = Double.parseDouble(gammaObj.toString());
+    double epsilon = Double.parseDouble(epsilonObj.toString());
+    int reward = Integer.parseInt(rewardObj.toString());
+
+    // the environments of a batch must be independent of each other
+    List<String> labURLs = toEnvironmentURLs(environmentsObj);
+    if (labURLs == null && !environmentURL.startsWith(SIMULATION_SCHEME)) {
+        failed("Batched Q-learning requires a simulation or the URLs of different labs, but the environment is "
+            + environmentURL);
+        return;
+    }
+    if (labURLs != null && (labURLs.isEmpty() || new HashSet<>(labURLs).size() != labURLs.size())) {
+        failed("Batched Q-learning requires the URLs of different labs, but got " + labURLs);
+        return;
+    }
+    int environmentCount = labURLs == null ? Integer.parseInt(environmentsObj.toString()) : labURLs.size();
+
+    int[] goal = TrainingEngine.parseGoal(goalDescription);
+    StateCodec codec = lab.getStateCodec();
+    QTable qTable = initializeQTable();
+
+    // the random number generators are derived from the seed of the simulation
+    SplittableRandom seeds = new SplittableRandom(workerSeed(environmentURL, 0)).split();
+    List<LearningEnvironment> environments = new ArrayList<>();
+    TrainingEngine[] resetters = new TrainingEngine[environmentCount];
+    for (int i = 0; i < environmentCount; i++) {
+        LearningEnvironment env = labURLs == null ? createEnvironment(environmentURL, i) : createEnvironment(labURLs.get(i));
+        if (env.getStateCount() != stateCount || env.getActionCount() != actionCount) {
+            failed("The environment " + (labURLs == null ? environmentURL : labURLs.get(i))
+                + " has another state or action space than " + environmentURL);
+            return;
+        }
+        environments.add(env);
 
-            currentState = newState;
+        // the environments are reset like the episodes of an engine, without logging each reset
+        resetters[i] = new TrainingEngine(env, seeds.split(), metrics);
+        resetters[i].configure(qTable, goal, alpha, gamma, epsilon, reward);
+    }
+    Random random = new Random(seeds.nextLong());
+
+    VectorizedEnvironment.Resetter resetter = (i, env) -> resetters[i].beginEpisode();
+    VectorizedEnvironment.TransitionReward transitionReward =
+        (i, env, state, nextState) -> TrainingEngine.reward(codec, state, nextState, goal[0], goal[1], reward);
+    IntPredicate isGoalState = state -> codec.axisValue(state, 0) == goal[0] && codec.axisValue(state, 1) == goal[1];
+
+    // Train on a separate thread, so that the metrics can be published while training
+    ExecutorService trainer = Executors.newSingleThreadExecutor();
+    int completedEpisodes;
+    try (VectorizedEnvironment batch = labURLs == null
+        ? new VectorizedEnvironment(environments, resetter, transitionReward, isGoalState,
+            TrainingEngine.MAX_EPISODE_STEPS, Runtime.getRuntime().availableProcessors())
+        : new VectorizedEnvironment(environments, resetter, transitionReward, isGoalState,
+            TrainingEngine.MAX_EPISODE_STEPS)) {
+        completedEpisodes = awaitTraining(trainer.submit(() -> trainBatched(batch, qTable, episodes, alpha, gamma,
+            epsilon, random)));
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed("Q-learning was interrupted");
+        return;
+    } catch (ExecutionException e) {
+        LOGGER.severe("Q-learning failed: " + e.getCause());
+        failed("Q-learning failed: " + e.getCause());
+        return;
+    } finally {
+        trainer.shutdown();
+    }
 
-            // Check if we've reached a goal state
-            List<Integer> currentStateComponents = lab.currentState; // Get the actual state components
+    Integer goalKey = Arrays.hashCode(goalDescription);
+    putQTable(goalKey, goalDescription, qTable);
+    saveQTable(goalKey, createHeader(goalDescription, episodes, alpha, gamma, epsilon, reward), qTable);
+    LOGGER.info("Q-learning completed for goal " + Arrays.toString(goalDescription) + " with "
+        + environmentCount + " environments after " + completedEpisodes + " episodes");
+}
 
-            int z1Level = currentStateComponents.get(0);
-            int z2Level = currentStateComponents.get(1);
+/**
+* Computes the Q matrices of several goal descriptions by value iteration over the
+* transitions observed so far (by the training, by {@link #getActionFromState} and by
+* the controlling artifacts, see {@link PolicyRegistry#recordControlTransition}),
+* without interacting with the lab. The goals are solved concurrently, and the
+* resulting Q matrices replace the ones computed for the goals before and are stored
+* with 0 episodes, so that {@link #calculateQ} does not mistake them for trained ones.
+* The pairs of a state and an action that have not been observed get a pessimistic value,
+* so the compiled policies prefer the observed actions (see {@link ValueIterationSolver}).
+*
+* @param  goalDescriptions  the goal descriptions (e.g., [[2,3],[0,0]]); if empty, all 16
+* goal descriptions [z1Level, z2Level] are solved
+* @param gammaObj the discount factor [0,1)
+* @param rewardObj the reward assigned when reaching the goal state
+* @param toleranceObj the largest change of a Q value in an iteration at which the values have converged
+* @param maxIterationsObj the maximum number of iterations per goal
+**/
+@OPERATION
+public void solveQ(Object[] goalDescriptions, Object gammaObj, Object rewardObj, Object toleranceObj, Object maxIterationsObj) {
+    if (!beginOperation()) {
+        return;
+    }
 
-            // Get goal values with proper casting
-            int goalZ1 = ((Number)goalDescription[0]).intValue();
-            int goalZ2 = ((Number)goalDescription[1]).intValue();
+    // ensure that the right datatypes are used
+    double gamma = Double.parseDouble(gammaObj.toString());
+    int reward = Integer.parseInt(rewardObj.toString());
+    double tolerance = Double.parseDouble(toleranceObj.toString());
+    int maxIterations = Integer.parseInt(maxIterationsObj.toString());
+
+    if (!(gamma >= 0 && gamma < 1)) {
+        failed("The discount factor must be in [0,1) for value iteration, but is " + gamma);
+        return;
+    }
+    if (model.getTransitionCount() == 0) {
+        failed("No transitions have been observed yet");
+        return;
+    }
 
+    List<Object[]> goals = toGoalDescriptions(goalDescriptions);
+    long start = System.nanoTime();
+    ValueIterationSolver solver = new ValueIterationSolver(model, lab);
 
-            // Log what we're comparing
-            // LOGGER.info("Comparing current state [" + z1Level + "," + z2Level + "] with goal state [" + goalZ1 + "," + goalZ2 + "]");
+    int parallelism = Math.max(1, Math.min(goals.size(), Runtime.getRuntime().availableProcessors()));
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
 
-            boolean matchesGoal = (z1Level == ((Number)goalDescription[0]).intValue() &&
-                    z2Level == ((Number)goalDescription[1]).intValue());
+    try {
+        List<ForkJoinTask<ValueIterationSolver.Result>> tasks = new ArrayList<>();
+        for (Object[] goal : goals) {
+            int[] parsedGoal = TrainingEngine.parseGoal(goal);
+            tasks.add(pool.submit(() -> solver.solve(parsedGoal, gamma, reward, tolerance, maxIterations)));
+        }
 
-            if (matchesGoal) {
-                LOGGER.info("Goal state reached in episode " + episode + " after " + step + " steps.");
-                LOGGER.info("Goal state found at state " + currentState + ".");
-                break;
+        for (int i = 0; i < goals.size(); i++) {
+            Integer goalKey = Arrays.hashCode(goals.get(i));
+            ValueIterationSolver.Result result = awaitTraining(tasks.get(i));
+            if (result.getResidual() > tolerance) {
+                LOGGER.warning("Value iteration did not converge for goal " + Arrays.toString(goals.get(i))
+                    + " after " + result.getIterations() + " iterations (residual " + result.getResidual() + ")");
             }
+            putQTable(goalKey, goals.get(i), result.getQTable());
+            saveQTable(goalKey, createHeader(goals.get(i), 0, 0.0, gamma, 0.0, reward), result.getQTable());
+        }
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed("Value iteration was interrupted");
+        return;
+    } catch (ExecutionException e) {
+        LOGGER.severe("Value iteration failed: " + e.getCause());
+        failed("Value iteration failed: " + e.getCause());
+        return;
+    } finally {
+        pool.shutdown();
+    }
 
+    LOGGER.info("Value iteration completed for " + goals.size() + " goals over " + solver.getTransitionCount()
+        + " transitions in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+}
 
+/**
+* Computes the Q matrices of several goal descriptions offline from a transition log,
+* e.g. one recorded with the {@value TransitionLog#PATH_PROPERTY} system property. The
+* memory-mapped records are streamed in the order in which they were logged, and each
+* transition is relabelled for every goal and applied to the Q matrices of all the
+* goals with the Q-learning update, and recorded in the transition model, so that
+* {@link #solveQ} can be used afterwards as well. The rewards are recomputed for each
+* goal from the state codes, so the log can be used for any goal. Only the records of
+* the given sources are used, so that e.g. the transitions of a simulation are not
+* mixed with the ones of the lab.
+*
+* @param  pathObj  the path of the transition log
+* @param  sources  the names of the sources of the records to learn from (e.g., ["lab","control"],
+* see {@link TransitionLog#parseSource}); if empty, all the records are used
+* @param  goalDescriptions  the goal descriptions (e.g., [[2,3],[0,0]]); if empty, all 16
+* goal descriptions [z1Level, z2Level] are trained
+* @param  passesObj the number of passes over the log
+* @param  alphaObj the learning rate with range [0,1].
+* @param  gammaObj the discount factor [0,1]
+* @param rewardObj the reward assigned when reaching the goal state
+**/
+@OPERATION
+public void learnFromLog(Object pathObj, Object[] sources, Object[] goalDescriptions, Object passesObj, Object alphaObj, Object gammaObj, Object rewardObj) {
+    if (!beginOperation()) {
+        return;
+    }
 
+    // ensure that the right datatypes are used
+    Path path = Paths.get(pathObj.toString());
+    int passes = Integer.parseInt(passesObj.toString());
+    double alpha = Double.parseDouble(alphaObj.toString());
+    double gamma = Double.parseDouble(gammaObj.toString());
+    int reward = Integer.parseInt(rewardObj.toString());
+
+    // the bits of the sources of the records to learn from
+    long sourceMask = sources.length == 0 ? -1L : 0L;
+    try {
+        for (Object source : sources) {
+            sourceMask |= 1L << TransitionLog.parseSource(source.toString());
         }
+    } catch (IllegalArgumentException e) {
+        failed(e.getMessage());
+        return;
+    }
+
+    List<Object[]> goals = toGoalDescriptions(goalDescriptions);
+    QTable[] goalTables = new QTable[goals.size()];
+    int[][] goalStates = new int[goals.size()][];
+    for (int i = 0; i < goalTables.length; i++) {
+        goalTables[i] = initializeQTable();
+        goalStates[i] = TrainingEngine.parseGoal(goals.get(i));
+    }
 
-        if (episodes <= 10 || episode % 100 == 0) {
-            LOGGER.info("Completed episode " + episode + " of " + episodes);
+    TransitionLog.Reader reader;
+    try {
+        if (transitionLog != null) {
+            transitionLog.flush();
         }
+        reader = new TransitionLog.Reader(path);
+    } catch (IOException e) {
+        LOGGER.severe("Failed to read the transition log " + path + ": " + e.getMessage());
+        failed("Failed to read the transition log " + path + ": " + e.getMessage());
+        return;
+    }
+    if (reader.getCodecVersion() != lab.getStateCodec().getVersion()) {
+        failed("The transition log " + path + " uses a different state codec");
+        return;
+    }
+
+    // Learn on a separate thread, so that the metrics can be published while learning
+    TransitionModel logModel = new TransitionModel(stateCount, actionCount);
+    ExecutorService trainer = Executors.newSingleThreadExecutor();
+    long start = System.nanoTime();
+    long sourceFilter = sourceMask;
+    long learnt;
     try {
-        // Wait for 10 seconds
-        Thread.sleep(10000);
+        learnt = awaitTraining(trainer.submit(() -> learnFromLog(reader, sourceFilter, passes, goalTables, goalStates,
+            alpha, gamma, reward, logModel)));
     } catch (InterruptedException e) {
-        e.printStackTrace();
+        Thread.currentThread().interrupt();
+        failed("Learning from the transition log was interrupted");
+        return;
+    } catch (ExecutionException e) {
+        LOGGER.severe("Learning from the transition log failed: " + e.getCause());
+        failed("Learning from the transition log failed: " + e.getCause());
+        return;
+    } finally {
+        trainer.shutdown();
     }
+    if (learnt == 0) {
+        failed("The transition log " + path + " has no transitions of the sources " + Arrays.toString(sources));
+        return;
     }
+    model.merge(logModel);
 
-    // Save the Q-table for this goal description
-    qTables.put(goalKey, qTable);
+    for (int i = 0; i < goalTables.length; i++) {
+        Object[] goalDescription = goals.get(i);
+        Integer goalKey = Arrays.hashCode(goalDescription);
+        putQTable(goalKey, goalDescription, goalTables[i]);
+        saveQTable(goalKey, createHeader(goalDescription, 0, alpha, gamma, 0.0, reward), goalTables[i]);
+    }
+    LOGGER.info("Learnt " + goalTables.length + " goals from " + learnt + " of " + reader.getRecordCount()
+        + " transitions of " + path + " in " + passes + " passes in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+}
+
+/**
+* Waits for a training task, publishing the training metrics periodically. The
+* operation is suspended while it waits, so that the agents observe the updates,
+* and the other operations fail until the task is done.
+*
+* @param task the training task
+* @return the result of the task, e.g. the Q matrix it computed
+*/
+private <T> T awaitTraining(Future<T> task) throws InterruptedException, ExecutionException {
+    training = true;
+    try {
+        while (!task.isDone()) {
+            await_time(METRICS_INTERVAL_MILLIS);
+            publishMetrics();
+        }
+    } finally {
+        training = false;
+    }
+    publishMetrics();
+    if (transitionLog != null) {
+        transitionLog.flush();
+    }
+    return task.get();
+}
 
-    // Save Q-table to CSV
+/**
+* Starts an operation: fails it if another operation is waiting for a trainer, and
+* otherwise adds the transitions that the controlling artifacts recorded in the policy
+* registry since the last operation to the transition model and the replay buffers.
+* The artifact is unlocked while a trainer runs, but the lab, the transition model and
+* the replay buffers are not thread-safe and are used by the trainer.
+*
+* @return true if the operation can proceed
+*/
+private boolean beginOperation() {
+    if (training) {
+        failed("A Q-learning operation is in progress");
+        return false;
+    }
+    policies.drainControlTransitions(this::addControlTransition);
+    return true;
+}
+
+/**
+* Updates the training_metrics observable property from the metrics registry
+*/
+private void publishMetrics() {
+    getObsProperty("training_metrics").updateValues(metrics.getSteps(), metrics.getStepsPerSecond(),
+        metrics.getEpisodes(), metrics.getEpisodesPerSecond(), metrics.getMeanStepsToGoal(),
+        metrics.getMeanAbsoluteQChange());
+}
 
     /**
-    String filePath = "qtable_" + goalKey + ".csv"; // Use goalKey to create a unique filename
-    try (FileWriter fileWriter = new FileWriter(filePath)) {
-        for (double[] stateRow : qTable) {
-            for (int j = 0; j < stateRow.length; j++) {
-                fileWriter.write(stateRow[j] + (j == stateRow.length - 1 ? "" : ",")); // Comma-separated
+     * Returns the Q-table of a goal, and maps it from the store if it has not been
+     * used since the artifact was initialized
+     *
+     * @param goalKey the key of the goal
+     * @param goalDescription the goal description
+     * @return the Q-table, or null if no Q-table has been calculated for the goal
+     */
+    private QTable getQTable(Integer goalKey, Object[] goalDescription) {
+        QTable qTable = qTables.get(goalKey);
+        if (qTable == null) {
+            qTable = loadStoredQTable(goalKey, null);
+            if (qTable != null) {
+                putQTable(goalKey, goalDescription, qTable);
             }
-            fileWriter.write("\n"); // Newline for new state
         }
-        LOGGER.info("Q-table for goal " + goalKey + " saved to file: " + filePath);
-    } catch (IOException e) {
-        LOGGER.severe("Failed to save Q-table to file: " + e.getMessage());
+        return qTable;
     }
 
-    **/
+    /**
+     * Sets the Q-table of a goal, and registers the greedy policy compiled from it
+     *
+     * @param goalKey the key of the goal
+     * @param goalDescription the goal description
+     * @param qTable the Q-table
+     */
+    private void putQTable(Integer goalKey, Object[] goalDescription, QTable qTable) {
+        qTables.put(goalKey, qTable);
+        policies.register(GreedyPolicy.compile(qTable, lab, TrainingEngine.parseGoal(goalDescription)));
+    }
 
+    /**
+     * Maps a stored Q-table into memory, without copying its values
+     *
+     * @param goalKey the key of the goal
+     * @param required the header the stored Q-table must satisfy, or null to accept any stored Q-table
+     * @return the Q-table, or null if there is no such stored Q-table
+     */
+    private QTable loadStoredQTable(Integer goalKey, QTableStore.Header required) {
+        Path file = storedQTables.get(goalKey);
+        if (file == null) {
+            return null;
+        }
 
+        try {
+            QTableStore.Header header = qTableStore.readHeader(file);
+            if (required != null && !header.satisfies(required)) {
+                return null;
+            }
+            QTable qTable = qTableStore.map(file);
+            storedQTables.remove(goalKey);
+            LOGGER.info("Mapped the stored Q-table " + file);
+            return qTable;
+        } catch (IOException e) {
+            LOGGER.warning("Failed to load the stored Q-table " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
 
-    printQTable(qTable);
-    randomizeState(goalDescription);
-    LOGGER.info("Q-learning completed for goal " + Arrays.toString(goalDescription));
-}
+    /**
+     * Saves a Q-table to the store
+     *
+     * @param goalKey the key of the goal
+     * @param header the header of the Q-table
+     * @param qTable the Q-table
+     */
+    private void saveQTable(Integer goalKey, QTableStore.Header header, QTable qTable) {
+        try {
+            qTableStore.write(header, qTable);
+            storedQTables.remove(goalKey);
+        } catch (IOException e) {
+            LOGGER.severe("Failed to save Q-table to file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the header of the stored Q-table of a goal
+     */
+    private QTableStore.Header createHeader(Object[] goalDescription, int episodes, double alpha,
+                                            double gamma, double epsilon, double reward) {
+        int[] goal = new int[goalDescription.length];
+        for (int i = 0; i < goal.length; i++) {
+            goal[i] = Integer.parseInt(goalDescription[i].toString());
+        }
+        return new QTableStore.Header(goal, lab.getStateCodec().getVersion(), stateCount, actionCount,
+            episodes, alpha, gamma, epsilon, reward);
+    }
+
+    /**
+     * Converts a stored goal description to the form used for the keys of the goals
+     */
+    private static Object[] toBoxedGoal(int[] goal) {
+        Object[] goalDescription = new Object[goal.length];
+        for (int i = 0; i < goal.length; i++) {
+            goalDescription[i] = goal[i];
+        }
+        return goalDescription;
+    }
+
+    /**
+     * Converts the environments passed to {@link #calculateQBatched} to the URLs of labs
+     *
+     * @param environmentsObj the number of simulations, or the URLs of labs as an array or list
+     * @return the URLs, or null if a number of simulations is given
+     */
+    private static List<String> toEnvironmentURLs(Object environmentsObj) {
+        Object[] urls;
+        if (environmentsObj instanceof Object[]) {
+            urls = (Object[]) environmentsObj;
+        } else if (environmentsObj instanceof List) {
+            urls = ((List<?>) environmentsObj).toArray();
+        } else {
+            return null;
+        }
+
+        List<String> labURLs = new ArrayList<>();
+        for (Object url : urls) {
+            labURLs.add(url.toString());
+        }
+        return labURLs;
+    }
+
+    /**
+     * Converts the goal descriptions passed to an operation to arrays, or returns
+     * all the goal descriptions [z1Level, z2Level] if none are given
+     *
+     * @param goalDescriptions the goal descriptions as arrays or lists
+     * @return the goal descriptions as arrays
+     */
+    private static List<Object[]> toGoalDescriptions(Object[] goalDescriptions) {
+        List<Object[]> goals = new ArrayList<>();
+        if (goalDescriptions == null || goalDescriptions.length == 0) {
+            for (int z1Level = 0; z1Level < 4; z1Level++) {
+                for (int z2Level = 0; z2Level < 4; z2Level++) {
+                    goals.add(new Object[]{z1Level, z2Level});
+                }
+            }
+            return goals;
+        }
+
+        for (Object goal : goalDescriptions) {
+            if (goal instanceof Object[]) {
+                goals.add((Object[]) goal);
+            } else if (goal instanceof List) {
+                goals.add(((List<?>) goal).toArray());
+            } else {
+                throw new IllegalArgumentException("Unexpected goal description: " + goal);
+            }
+        }
+        return goals;
+    }
+
+
+    /**
+     * Runs the Q-learning algorithm against a goal description on a learning environment,
+     * with a {@link TrainingEngine}
+     *
+     * @param env the learning environment
+     * @param random the random number generator used for exploration and randomization
+     * @param replayBuffer the buffer of the transitions experienced for the goal
+     * @param model the model the transitions are recorded in and planned with, used by this training only
+     * @param goalDescription the desired goal (e.g., [2,3])
+     * @param episodes the number of episodes
+     * @param alpha the learning rate
+     * @param gamma the discount factor
+     * @param epsilon the exploration probability
+     * @param reward the reward assigned when reaching the goal state
+     * @return the Q matrix
+     */
+    private QTable trainQTable(LearningEnvironment env, SplittableRandom random, ReplayBuffer replayBuffer,
+                                   TransitionModel model, Object[] goalDescription, int episodes, double alpha,
+                                   double gamma, double epsilon, int reward) {
+        TrainingEngine engine = new TrainingEngine(env, random, metrics);
+        engine.configure(initializeQTable(), TrainingEngine.parseGoal(goalDescription), alpha, gamma, epsilon, reward);
+        engine.setReplay(replayBuffer, replayBatchSize);
+        engine.setPlanning(model, planningSteps, planningBudgetNanos);
+        engine.setTransitionLog(transitionLog);
+        return engine.train(episodes);
+    }
+
+    /**
+     * Runs the Q-learning algorithm on a batch of environments, applying the transitions of
+     * all the environments of a step to the same Q matrix
+     *
+     * @param batch the batch of environments, whose resets start the episodes
+     * @param qTable the Q matrix
+     * @param episodes the number of episodes, over all environments
+     * @param alpha the learning rate
+     * @param gamma the discount factor
+     * @param epsilon the exploration probability
+     * @param random the random number generator used for exploration
+     * @return the number of completed episodes
+     */
+    private int trainBatched(VectorizedEnvironment batch, QTable qTable, int episodes, double alpha, double gamma,
+                             double epsilon, Random random) {
+        int environmentCount = batch.size();
+        int[] states = new int[environmentCount];
+        int[] actions = new int[environmentCount];
+        int completedEpisodes = 0;
+        double qChangeSum = 0;
+        int qUpdates = 0;
+
+        batch.reset();
+
+        while (completedEpisodes < episodes) {
+            System.arraycopy(batch.getStates(), 0, states, 0, environmentCount);
+            for (int i = 0; i < environmentCount; i++) {
+                actions[i] = chooseAction(qTable, states[i], lab.getApplicableActionMask(states[i]), epsilon, random);
+            }
+
+            VectorizedEnvironment.StepResult result = batch.step(actions);
+
+            // Update Q-values using the Q-learning formula, one transition per environment
+            for (int i = 0; i < environmentCount; i++) {
+                int newState = result.nextStates[i];
+                double maxQNext = getMaxQ(qTable, newState, lab.getApplicableActionMask(newState));
+                double qChange = alpha * (result.rewards[i] + gamma * maxQNext - qTable.get(states[i], actions[i]));
+                qTable.add(states[i], actions[i], qChange);
+                qChangeSum += Math.abs(qChange);
+                qUpdates++;
+
+                if (result.dones[i]) {
+                    completedEpisodes++;
+                    metrics.recordEpisode(qChangeSum / qUpdates);
+                    qChangeSum = 0;
+                    qUpdates = 0;
+                }
+            }
+            metrics.recordSteps(environmentCount);
+        }
+        return completedEpisodes;
+    }
+
+    /**
+     * Applies the transitions of a log to the Q-tables of several goals
+     *
+     * @param reader the reader of the log
+     * @param sourceMask the bits of the sources of the records to learn from
+     * @param passes the number of passes over the log
+     * @param goalTables the Q-tables of the goals
+     * @param goals the desired light levels of both zones of each goal
+     * @param alpha the learning rate
+     * @param gamma the discount factor
+     * @param reward the reward assigned when reaching the goal state
+     * @param model the model the transitions of the first pass are recorded in
+     * @return the number of records learnt from in a pass
+     */
+    private long learnFromLog(TransitionLog.Reader reader, long sourceMask, int passes, QTable[] goalTables,
+                              int[][] goals, double alpha, double gamma, int reward, TransitionModel model) {
+        StateCodec codec = lab.getStateCodec();
+        long learnt = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            reader.rewind();
+            learnt = 0;
+            while (reader.next()) {
+                int source = reader.getSource();
+                if (source < 0 || source >= Long.SIZE || (sourceMask & (1L << source)) == 0) {
+                    continue;
+                }
+                int state = reader.getState();
+                int action = reader.getAction();
+                int nextState = reader.getNextState();
+                if (state < 0 || state >= stateCount || action < 0 || action >= actionCount
+                        || nextState < 0 || nextState >= stateCount) {
+                    continue;
+                }
+                if (pass == 0) {
+                    model.observe(state, action, nextState);
+                }
 
+                long nextActions = lab.getApplicableActionMask(nextState);
+                for (int goal = 0; goal < goalTables.length; goal++) {
+                    QTable qTable = goalTables[goal];
+                    double transitionReward = TrainingEngine.reward(codec, state, nextState, goals[goal][0],
+                            goals[goal][1], reward);
+                    qTable.add(state, action, alpha * (transitionReward
+                            + gamma * qTable.rowMax(nextState, nextActions) - qTable.get(state, action)));
+                }
+                learnt++;
+            }
+            metrics.recordReplayUpdates((int) Math.min(Integer.MAX_VALUE, learnt * goalTables.length));
+        }
+        return learnt;
+    }
+
+    /**
+     * Returns the replay buffer of a goal, creating it on the first call. The buffer
+     * keeps the transitions of the training and of the control of the lab for the goal,
+     * so that a later training for the goal starts with the experience gathered so far.
+     *
+     * @param goalKey the key of the goal
+     * @return the replay buffer
+     */
+    private ReplayBuffer getReplayBuffer(Integer goalKey) {
+        return replayBuffers.computeIfAbsent(goalKey,
+            key -> new ReplayBuffer(Integer.getInteger(REPLAY_CAPACITY_PROPERTY, DEFAULT_REPLAY_CAPACITY)));
+    }
+
+    /**
+     * Adds the transition that followed the last action returned by {@link #getActionFromState}
+     * to the transition model and to the replay buffer of its goal, if the agent asks again for
+     * the same goal
+     *
+     * @param goalId the dense id of the goal
+     * @param state the state the lab is in now
+     */
+    private void recordControlTransition(int goalId, int state) {
+        if (goalId == controlGoalId) {
+            addControlTransition(goalId, controlState, controlAction, state);
+        }
+    }
+
+    /**
+     * Adds a transition of the lab caused by an action of the policy of a goal to the
+     * transition model and to the replay buffer of the goal. The reward is buffered without
+     * the goal bonus, which is added when the transition is replayed.
+     *
+     * @param goalId the dense id of the goal
+     * @param state the state the action was performed in
+     * @param action the action
+     * @param nextState the state after the action
+     */
+    private void addControlTransition(int goalId, int state, int action, int nextState) {
+        if (state < 0 || state >= stateCount || action < 0 || action >= actionCount
+                || nextState < 0 || nextState >= stateCount) {
+            return;
+        }
+        StateCodec codec = lab.getStateCodec();
+        int z1Level = goalId / codec.getRadix(1);
+        int z2Level = goalId % codec.getRadix(1);
+        double reward = TrainingEngine.reward(codec, state, nextState, z1Level, z2Level, 0.0);
+        boolean reached = codec.axisValue(nextState, 0) == z1Level && codec.axisValue(nextState, 1) == z2Level;
+        getReplayBuffer(Arrays.hashCode(new Object[]{z1Level, z2Level})).add(state, action, reward, nextState, reached);
+        model.observe(state, action, nextState);
+    }
 
     /**
      * Randomizes the state of the lab environment by focusing on actions
      * that directly control the environmental factors affecting illumination
      *
+     * @param env The learning environment
+     * @param random The random number generator
      * @param goalDescription An Object array containing the goal state values to avoid
      */
-    private void randomizeState(Object[] goalDescription) {
+    private void randomizeState(LearningEnvironment env, Random random, Object[] goalDescription) {
         LOGGER.info("Starting targeted illumination randomization...");
         LOGGER.info("Goal state to avoid: [" + goalDescription[0] + "," + goalDescription[1] + "]");
-        Random random = new Random();
 
         // Get the initial state
-        int initialStateId = lab.readCurrentState();
-        List<Integer> initialComponents = new ArrayList<>(lab.currentState);
+        Observation initial = env.observe();
+        int initialStateId = initial.getStateCode();
+        List<Integer> initialComponents = initial.getValues();
         LOGGER.info("Initial state ID: " + initialStateId + ", components: " + initialComponents);
 
         // Store the initial values of the first two components (illumination values)
@@ -204,20 +1090,20 @@ public void calculateQ(Object[] goalDescription, Object episodesObj, Object alph
 
         // Perform multiple random actions to try to change the illumination state
         for (int i = 0; i < maxAttempts; i++) {
-            int currentState = lab.readCurrentState();
-            List<Integer> applicableActions = lab.getApplicableActions(currentState);
-            // LOGGER.info("Attempt " + (i+1) + ": Current state: " + currentState + ", components: " + lab.currentState);
+            int currentState = env.readCurrentState();
+            int[] applicableActions = env.getApplicableActionIds(currentState);
+            // LOGGER.info("Attempt " + (i+1) + ": Current state: " + currentState + ", components: " + env.getLastObservation());
 
-            if (!applicableActions.isEmpty()) {
-                int randomActionIndex = random.nextInt(applicableActions.size());
-                int randomAction = applicableActions.get(randomActionIndex);
+            if (applicableActions.length > 0) {
+                int randomActionIndex = random.nextInt(applicableActions.length);
+                int randomAction = applicableActions[randomActionIndex];
                 // LOGGER.info("Performing random action: " + randomAction);
 
-                lab.performAction(randomAction);
+                env.performAction(randomAction);
 
                 // Log current illumination values
-                lab.readCurrentState();
-                List<Integer> currentComponents = new ArrayList<>(lab.currentState);
+                env.awaitSettled();
+                List<Integer> currentComponents = env.getLastObservation().getValues();
                 // LOGGER.info("Initial state ID: " + initialStateId + ", components: " + initialComponents);
 
                 // Store the initial values of the first two components (illumination values)
@@ -238,8 +1124,7 @@ public void calculateQ(Object[] goalDescription, Object episodesObj, Object alph
         }
 
         // Log final state after randomization
-        int finalStateId = lab.readCurrentState();
-        List<Integer> finalComponents = new ArrayList<>(lab.currentState);
+        List<Integer> finalComponents = env.observe().getValues();
         LOGGER.info("Randomization complete.");
         LOGGER.info("Initial illumination: [" + initialZ1 + "," + initialZ2 + "] → " +
                 "Final illumination: [" + finalComponents.get(0) + "," + finalComponents.get(1) + "]");
@@ -252,13 +1137,15 @@ public void calculateQ(Object[] goalDescription, Object episodesObj, Object alph
             // Last resort: try a more aggressive approach - perform many more random actions
             LOGGER.info("Attempting aggressive randomization as a last resort...");
             for (int i = 0; i < 30; i++) {
-                List<Integer> moreActions = lab.getApplicableActions(lab.readCurrentState());
-                if (!moreActions.isEmpty()) {
-                    int action = moreActions.get(random.nextInt(moreActions.size()));
-                    lab.performAction(action);
-
-                    if (lab.currentState.get(0) != goalZ1 || lab.currentState.get(1) != goalZ2) {
-                        LOGGER.info("Aggressive randomization succeeded! New state: " + lab.currentState);
+                int[] moreActions = env.getApplicableActionIds(env.readCurrentState());
+                if (moreActions.length > 0) {
+                    int action = moreActions[random.nextInt(moreActions.length)];
+                    env.performAction(action);
+                    env.awaitSettled();
+                    Observation observation = env.getLastObservation();
+
+                    if (observation.getValue(0) != goalZ1 || observation.getValue(1) != goalZ2) {
+                        LOGGER.info("Aggressive randomization succeeded! New state: " + observation.getValues());
                         return;
                     }
                 }
@@ -273,17 +1160,16 @@ public void calculateQ(Object[] goalDescription, Object episodesObj, Object alph
      * Chooses an action using epsilon-greedy policy
      * @param qTable The Q-table
      * @param state The current state
-     * @param applicableActions List of applicable actions
+     * @param applicableActions The mask of the applicable actions
      * @param epsilon Exploration probability
+     * @param random The random number generator
      * @return The chosen action
      */
-    private int chooseAction(double[][] qTable, int state, List<Integer> applicableActions, double epsilon) {
-        Random random = new Random();
-
+    static int chooseAction(QTable qTable, int state, long applicableActions, double epsilon, Random random) {
         // With probability epsilon, choose a random action (exploration)
         if (random.nextDouble() < epsilon) {
-            int randomIndex = random.nextInt(applicableActions.size());
-            return applicableActions.get(randomIndex);
+            int randomIndex = random.nextInt(Long.bitCount(applicableActions));
+            return QTable.actionAt(applicableActions, randomIndex);
         }
 
         // Otherwise, choose the action with the highest Q-value (exploitation)
@@ -294,153 +1180,29 @@ public void calculateQ(Object[] goalDescription, Object episodesObj, Object alph
      * Returns the action with the highest Q-value for the given state
      * @param qTable The Q-table
      * @param state The current state
-     * @param applicableActions List of applicable actions
+     * @param applicableActions The mask of the applicable actions
      * @return The action with the highest Q-value
      */
-    private int getBestAction(double[][] qTable, int state, List<Integer> applicableActions) {
-        int bestAction = applicableActions.get(0); // Default to first applicable action
-        double bestValue = qTable[state][bestAction];
-
-        for (int action : applicableActions) {
-            if (qTable[state][action] > bestValue) {
-                bestValue = qTable[state][action];
-                bestAction = action;
-            }
-        }
-
-        return bestAction;
+    static int getBestAction(QTable qTable, int state, long applicableActions) {
+        return qTable.rowArgMax(state, applicableActions);
     }
 
     /**
      * Returns the maximum Q-value for the next state
      * @param qTable The Q-table
      * @param state The state
-     * @param applicableActions List of applicable actions
-     * @return The maximum Q-value
-     */
-    private double getMaxQ(double[][] qTable, int state, List<Integer> applicableActions) {
-        if (applicableActions.isEmpty()) {
-            return 0.0; // No applicable actions
-        }
-
-        double maxValue = Double.NEGATIVE_INFINITY;
-        for (int action : applicableActions) {
-            maxValue = Math.max(maxValue, qTable[state][action]);
-        }
-
-        return maxValue;
-    }
-
-    /**
-     * Calculates the reward for transitioning to a new state
-     * @param goalDescription The goal description
-     * @param goalReward The reward value to use when goal state is reached
-     * @return The calculated reward
+     * @param applicableActions The mask of the applicable actions
+     * @return The maximum Q-value, or 0 if no action is applicable
      */
-    private double calculateReward(Object[] goalDescription, Integer goalReward) {
-        // Extract the desired light levels from the goal description
-        int goalZ1Level = Integer.parseInt(goalDescription[0].toString());
-        int goalZ2Level = Integer.parseInt(goalDescription[1].toString());
-
-        lab.readCurrentState();
-        List<Integer> currentState = lab.currentState;
-
-        // Extract components from the current state
-        int z1Level = currentState.get(0);
-        int z2Level = currentState.get(1);
-        boolean z1Light = currentState.get(2) == 1;
-        boolean z2Light = currentState.get(3) == 1;
-        boolean z1Blinds = currentState.get(4) == 1;
-        boolean z2Blinds = currentState.get(5) == 1;
-        int sunshine = currentState.get(6);
-
-        int prevZ1Level = this.prevZ1Level;
-        int prevZ2Level = this.prevZ2Level;
-
-        // Update the previous state for the next iteration
-        this.prevZ1Level = z1Level;
-        this.prevZ2Level = z2Level;
-
-        // Check if we've reached the goal state
-        boolean atGoalState = (z1Level == goalZ1Level && z2Level == goalZ2Level);
-
-        double reward = -1.0; // Base step cost
-
-        // Add large reward if goal state is reached
-        if (atGoalState) {
-            reward += goalReward;
-
-        }
-
-        // Apply energy consumption penalty for lights (50 units each)
-        if (z1Light) {
-            reward -= 5.0; // Scaled from 50 units
-        }
-        if (z2Light) {
-            reward -= 5.0; // Scaled from 50 units
-        }
-
-        // Apply energy cost for blinds (1 unit each)
-        if (z1Blinds) {
-            reward -= 0.1; // Scaled from 1 unit
-        }
-        if (z2Blinds) {
-            reward -= 0.1; // Scaled from 1 unit
-        }
-
-        // Apply penalty for rapid changes in light levels
-        int z1LevelChange = Math.abs(z1Level - prevZ1Level);
-        int z2LevelChange = Math.abs(z2Level - prevZ2Level);
-        reward -= 0.1 * z1LevelChange + 0.1 * z2LevelChange;
-
-        // Add contextual intelligence for energy efficiency
-        // Penalize unnecessary light usage when natural light is available
-        if (sunshine >= 2) { // Medium or high sunshine
-            if (z1Blinds && z1Light) {
-                reward -= 1.0; // Additional penalty for using artificial light when natural light is available
-            }
-            if (z2Blinds && z2Light) {
-                reward -= 1.0;
-            }
-        }
-
-        return reward;
-    }
-
-
-    /**
-     * Checks if the current state is a goal state
-     * @param state The current state index
-     * @param goalDescription The goal description
-     * @return True if the state is a goal state, false otherwise
-     */
-    private boolean isGoalState(int state, Object[] goalDescription) {
-        // Extract the desired light levels from the goal description
-        int goalZ1Level = Integer.parseInt(goalDescription[0].toString());
-        int goalZ2Level = Integer.parseInt(goalDescription[1].toString());
-
-
-        List<Object> goalStateDesc = Arrays.asList(
-                goalZ1Level,
-                goalZ2Level,
-                null,
-                null,
-                null,
-                null,
-                null
-        );
-
-        // Get all states that match our goal description
-        List<Integer> goalStates = lab.getCompatibleStates(goalStateDesc);
-
-        // Check if our current state is one of the goal states
-        return goalStates.contains(state);
+    static double getMaxQ(QTable qTable, int state, long applicableActions) {
+        return qTable.rowMax(state, applicableActions);
     }
 
     /**
      * Returns information about the next best action based on a provided state and the QTable for
      * a goal description. The returned information can be used by agents to invoke an action
-     * using a ThingArtifact.
+     * using a ThingArtifact. The action is looked up in the compiled greedy policy of the goal,
+     * which is compiled from the Q-table of the goal when the Q-table is computed or loaded.
      *
      * @param  goalDescription  the desired goal against the which the Q matrix is calculated (e.g., [2,3])
      * @param  currentStateDescription the current state e.g. [2,2,true,false,true,true,2]
@@ -452,101 +1214,82 @@ public void calculateQ(Object[] goalDescription, Object episodesObj, Object alph
     public void getActionFromState(Object[] goalDescription, Object[] currentStateDescription,
                                    OpFeedbackParam<String> nextBestActionTag, OpFeedbackParam<Object[]> nextBestActionPayloadTags,
                                    OpFeedbackParam<Object[]> nextBestActionPayload) {
-        /**
-        // Log the raw input goalDescription
-        LOGGER.info("Received goal description: " + Arrays.toString(goalDescription));
-
-        // Convert to a proper List<Object> with explicit Integer conversion
-        List<Object> goalDescList = new ArrayList<>();
-        for (Object b : goalDescription) {
-            if (b instanceof Byte) {
-                goalDescList.add(((Byte) b).intValue()); // Safely cast Byte to Integer
-            } else {
-                throw new IllegalArgumentException("Unexpected type in goalDescription: " + b.getClass());
-            }
+        if (!beginOperation()) {
+            return;
         }
-
-        // Attempt to get the state indices that match the goal description
-        List<Integer> goalStateIndices = lab.getCompatibleStates(goalDescList);
-        LOGGER.info("Result from lab.getCompatibleStates using goal description: " + goalStateIndices);
-
-
-        // Ensure the goal state exists in the lab's state space
-        if (goalStateIndices.isEmpty()) {
-            LOGGER.severe("No states found that match the goal description: " + Arrays.toString(goalDescription));
-            LOGGER.severe("Possible explanations: "
-                    + "1) The state space does not contain this goal description. "
-                    + "2) The goal description format doesn't match the expected format for compatible states."
-            );
+        StateCodec codec = lab.getStateCodec();
+        int goalId;
+        int currentStateIndex;
+        try {
+            goalId = GreedyPolicy.goalId(codec, toLevel(goalDescription[0]), toLevel(goalDescription[1]));
+            currentStateIndex = encodeStateDescription(codec, currentStateDescription);
+        } catch (RuntimeException e) {
+            LOGGER.warning("Invalid goal " + Arrays.toString(goalDescription) + " or state "
+                    + Arrays.toString(currentStateDescription) + ": " + e.getMessage());
+            failed("Invalid goal or state description: " + e.getMessage());
             return;
         }
-        */
-
-
-        // Convert the current state to a list for compatibility with specific conversions
-        List<Object> currentStateDescList = new ArrayList<>();
-        for (int i = 0; i < currentStateDescription.length; i++) {
-            Object element = currentStateDescription[i];
-            if (element instanceof Byte) {
-                Byte byteValue = (Byte) element;
-                if (i >= 2 && i <= 5) {
-                    // Indices 2, 3, 4, 5: Convert 0 to false, 1 to true
-                    if (byteValue == 0) {
-                        currentStateDescList.add(false); // Map 0 -> false
-                    } else if (byteValue == 1) {
-                        currentStateDescList.add(true); // Map 1 -> true
-                    } else {
-                        throw new IllegalArgumentException(
-                                "Unexpected value at index " + i + ": " + byteValue + ". Expected 0 or 1.");
-                    }
-                } else {
-                    // Indices 0, 1, 6: Convert Byte to Integer
-                    currentStateDescList.add(byteValue.intValue());
-                }
-            } else {
-                // Add non-Byte elements as is (if applicable, though not expected here)
-                currentStateDescList.add(element);
+
+        // Look up the compiled policy of the goal, loading the Q-table of the goal if it has none yet
+        GreedyPolicy policy = policies.get(goalId);
+        if (policy == null) {
+            if (getQTable(Arrays.hashCode(goalDescription), goalDescription) == null) {
+                failed("No Q-table has been calculated for goal " + Arrays.toString(goalDescription));
+                return;
             }
+            policy = policies.get(goalId);
         }
 
-        // Log the converted state description
-        LOGGER.info("Converted current state description: " + currentStateDescList);
-
-
-        List<Integer> currentStateIndices = lab.getCompatibleStates(currentStateDescList);
-
-        // Ensure the current state exists in the lab's state space
-        if (currentStateIndices.isEmpty()) {
-            LOGGER.warning("No states found that match the current state description: " +
-                    Arrays.toString(currentStateDescription));
+        Action bestAction = policy.getAction(currentStateIndex);
+        if (bestAction == null) {
+            failed("No action is applicable in state " + Arrays.toString(currentStateDescription));
             return;
         }
 
+        // Buffer the transition caused by the previous action for the goal, and remember this one
+        recordControlTransition(goalId, currentStateIndex);
+        controlGoalId = goalId;
+        controlState = currentStateIndex;
+        controlAction = policy.getActionId(currentStateIndex);
 
-        // Get the first current state index
-        int currentStateIndex = currentStateIndices.get(0);
-        LOGGER.info("Current state index: " + currentStateIndex);
-        List<Integer> applicableActions = lab.getApplicableActions(currentStateIndex);
-
-        Integer goalKey = Arrays.hashCode(goalDescription);
-        LOGGER.info("Generated goalKey: " + goalKey);
-
-        // Retrieve the Q-Table for the given goal key
-        double[][] qTable = qTables.get(goalKey);
-
-        // Get the best action for a given state
-        int bestActionId = getBestAction(qTable, currentStateIndex, applicableActions);
-
-
-        // Fetch the action details from the lab
-        Action bestAction = lab.getAction(bestActionId);
         nextBestActionTag.set(bestAction.getActionTag());
         nextBestActionPayloadTags.set(bestAction.getPayloadTags());
         nextBestActionPayload.set(bestAction.getPayload());
 
-        LOGGER.info("Returning best action: " + bestAction.getActionTag() +
-                ", Payload Tags: " + Arrays.toString(bestAction.getPayloadTags()) +
-                ", Payload: " + Arrays.toString(bestAction.getPayload()));
+        LOGGER.info("Returning best action for state " + currentStateIndex + ": " + bestAction);
+    }
+
+    /**
+     * Encodes a state description as received from an agent, where the light levels and the
+     * sunshine are numbers and the lights and blinds are booleans or the numbers 0 and 1
+     *
+     * @param codec the codec of the states
+     * @param stateDescription the state description, e.g. [2,2,true,false,true,true,2]
+     * @return the state code
+     */
+    static int encodeStateDescription(StateCodec codec, Object[] stateDescription) {
+        int[] values = new int[stateDescription.length];
+        for (int axis = 0; axis < values.length; axis++) {
+            values[axis] = toLevel(stateDescription[axis]);
+        }
+        return codec.encode(values);
+    }
+
+    /**
+     * Converts an element of a goal or state description to an axis value
+     */
+    private static int toLevel(Object element) {
+        if (element instanceof Number) {
+            return ((Number) element).intValue();
+        }
+        if (element instanceof Boolean) {
+            return (Boolean) element ? 1 : 0;
+        }
+        String value = element.toString();
+        if (value.equals("true") || value.equals("false")) {
+            return value.equals("true") ? 1 : 0;
+        }
+        return Integer.parseInt(value);
     }
 
 
@@ -556,29 +1299,68 @@ public void calculateQ(Object[] goalDescription, Object episodesObj, Object alph
     *
     * @param qTable the Q matrix
     */
-  void printQTable(double[][] qTable) {
+  void printQTable(QTable qTable) {
     System.out.println("Q matrix");
-    for (int i = 0; i < qTable.length; i++) {
+    for (int i = 0; i < qTable.getStateCount(); i++) {
       System.out.print("From state " + i + ":  ");
-     for (int j = 0; j < qTable[i].length; j++) {
-      System.out.printf("%6.2f ", (qTable[i][j]));
+     for (int j = 0; j < qTable.getActionCount(); j++) {
+      System.out.printf("%6.2f ", qTable.get(i, j));
       }
       System.out.println();
     }
   }
 
   /**
-  * Initialize a Q matrix
+  * Creates the learning environment for a URL. URLs that start with
+  * {@link #SIMULATION_SCHEME} select a {@link SimulatedLab} seeded with the rest of
+  * the URL (or with the current time if the rest is empty), all other URLs are
+  * the locations of the W3C Thing Description of a {@link Lab}.
   *
-  * @return the Q matrix
+  * @param environmentURL the URL of the environment
+  * @return the learning environment
   */
- private double[][] initializeQTable() {
-    double[][] qTable = new double[this.stateCount][this.actionCount];
-    for (int i = 0; i < stateCount; i++){
-      for(int j = 0; j < actionCount; j++){
-        qTable[i][j] = 0.0;
-      }
+  static LearningEnvironment createEnvironment(String environmentURL) {
+    return createEnvironment(environmentURL, 0);
+  }
+
+  /**
+  * Creates the learning environment of a worker for a URL. Simulations of
+  * different workers are seeded differently, so that their runs are independent.
+  *
+  * @param environmentURL the URL of the environment
+  * @param worker the index of the worker
+  * @return the learning environment
+  */
+  static LearningEnvironment createEnvironment(String environmentURL, int worker) {
+    if (environmentURL.startsWith(SIMULATION_SCHEME)) {
+      return new SimulatedLab(workerSeed(environmentURL, worker));
     }
-    return qTable;
+    return new Lab(environmentURL);
+  }
+
+  /**
+  * Returns the seed of a worker for a URL, which is derived from the seed of the
+  * simulation for "sim:" URLs with a seed, and from the current time otherwise
+  *
+  * @param environmentURL the URL of the environment
+  * @param worker the index of the worker
+  * @return the seed
+  */
+  static long workerSeed(String environmentURL, int worker) {
+    String seed = environmentURL.startsWith(SIMULATION_SCHEME)
+      ? environmentURL.substring(SIMULATION_SCHEME.length()).trim() : "";
+    long baseSeed = seed.isEmpty() ? System.nanoTime() : Long.parseLong(seed);
+    return baseSeed + worker * 0x9E3779B97F4A7C15L;
+  }
+
+  /**
+  * Initialize a Q matrix whose values are all 0, with the storage selected by the
+  * {@link #QTABLE_BACKING_PROPERTY} system property
+  *
+  * @return the Q matrix
+  */
+ private QTable initializeQTable() {
+    QTable.Backing backing = QTable.Backing.valueOf(System.getProperty(QTABLE_BACKING_PROPERTY, "DOUBLE"));
+    return QTable.create(backing, this.stateCount, this.actionCount);
   }
 }
@@ -0,0 +1,278 @@
+package tools;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+/**
+ * A Q matrix with one row of action values per state, stored contiguously in
+ * row-major order.
+ *
+ * <p>
+ * The values are backed by a {@code double[]}, by a {@code float[]} that halves
+ * the footprint at the cost of precision, or by a {@link DoubleBuffer}, which
+ * can be an off-heap direct buffer or a memory-mapped Q table file of a
+ * {@link QTableStore}. State spaces that are too large to be stored densely use
+ * a {@link SparseQTable}. The row maximum and the row argmax are restricted to the
+ * actions of an applicable action mask, as returned by
+ * {@link LearningEnvironment#getApplicableActionMask(int)}.
+ * </p>
+ * <p>
+ * Reads and writes of single values are not synchronized. Tables that are shared
+ * across threads must be updated by one thread at a time.
+ * </p>
+ */
+public abstract class QTable {
+
+  /**
+   * The storage of the values of a Q table
+   */
+  public enum Backing {
+    /** a {@code double[]} on the heap */
+    DOUBLE,
+    /** a {@code float[]} on the heap */
+    FLOAT,
+    /** a direct {@link ByteBuffer} off the heap */
+    OFF_HEAP,
+    /** a {@link SparseQTable} that only stores the rows of updated states */
+    SPARSE
+  }
+
+  protected final int stateCount;
+  protected final int actionCount;
+
+  protected QTable(int stateCount, int actionCount) {
+    if (stateCount < 1 || actionCount < 1 || actionCount > Long.SIZE) {
+      throw new IllegalArgumentException("Invalid Q table size " + stateCount + "x" + actionCount);
+    }
+    this.stateCount = stateCount;
+    this.actionCount = actionCount;
+  }
+
+  /**
+   * Creates a Q table whose values are all 0
+   *
+   * @param backing the storage of the values
+   * @param stateCount the number of states
+   * @param actionCount the number of actions, at most 64
+   * @return the Q table
+   */
+  public static QTable create(Backing backing, int stateCount, int actionCount) {
+    if (backing == Backing.SPARSE) {
+      return new SparseQTable(stateCount, actionCount);
+    }
+    if ((long) stateCount * actionCount > Integer.MAX_VALUE / Double.BYTES) {
+      throw new IllegalArgumentException("The Q table is too large to be stored densely: "
+        + stateCount + "x" + actionCount);
+    }
+    switch (backing) {
+      case FLOAT:
+        return new FloatArrayQTable(stateCount, actionCount);
+      case OFF_HEAP:
+        return new BufferQTable(stateCount, actionCount,
+          ByteBuffer.allocateDirect(stateCount * actionCount * Double.BYTES).asDoubleBuffer());
+      default:
+        return new DoubleArrayQTable(stateCount, actionCount);
+    }
+  }
+
+  /**
+   * Wraps a buffer of values in row-major order, e.g. a mapped Q table file
+   *
+   * @param stateCount the number of states
+   * @param actionCount the number of actions, at most 64
+   * @param values the buffer, whose remaining values are the values of the table
+   * @return the Q table, which is read-only if the buffer is read-only
+   */
+  public static QTable wrap(int stateCount, int actionCount, DoubleBuffer values) {
+    if (values.remaining() != stateCount * actionCount) {
+      throw new IllegalArgumentException("Expected " + stateCount * actionCount + " values but got "
+        + values.remaining());
+    }
+    return new BufferQTable(stateCount, actionCount, values.slice());
+  }
+
+  public int getStateCount() {
+    return stateCount;
+  }
+
+  public int getActionCount() {
+    return actionCount;
+  }
+
+  /**
+   * Returns the value of an action in a state
+   *
+   * @param state the state
+   * @param action the action
+   * @return the Q value
+   */
+  public abstract double get(int state, int action);
+
+  /**
+   * Sets the value of an action in a state
+   *
+   * @param state the state
+   * @param action the action
+   * @param value the Q value
+   */
+  public abstract void set(int state, int action, double value);
+
+  /**
+   * Adds to the value of an action in a state
+   *
+   * @param state the state
+   * @param action the action
+   * @param delta the change of the Q value
+   */
+  public void add(int state, int action, double delta) {
+    set(state, action, get(state, action) + delta);
+  }
+
+  /**
+   * Returns the maximum value of the applicable actions in a state
+   *
+   * @param state the state
+   * @param applicableActions the mask of the applicable actions
+   * @return the maximum Q value, or 0 if no action is applicable
+   */
+  public double rowMax(int state, long applicableActions) {
+    if (applicableActions == 0) {
+      return 0.0;
+    }
+    double max = Double.NEGATIVE_INFINITY;
+    for (long mask = applicableActions; mask != 0; mask &= mask - 1) {
+      max = Math.max(max, get(state, Long.numberOfTrailingZeros(mask)));
+    }
+    return max;
+  }
+
+  /**
+   * Returns the applicable action with the maximum value in a state, preferring
+   * the lowest action among equal values
+   *
+   * @param state the state
+   * @param applicableActions the mask of the applicable actions
+   * @return the action, or -1 if no action is applicable
+   */
+  public int rowArgMax(int state, long applicableActions) {
+    int best = -1;
+    double max = Double.NEGATIVE_INFINITY;
+    for (long mask = applicableActions; mask != 0; mask &= mask - 1) {
+      int action = Long.numberOfTrailingZeros(mask);
+      double value = get(state, action);
+      if (best < 0 || value > max) {
+        max = value;
+        best = action;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the action at a position among the actions of a mask
+   *
+   * @param applicableActions the mask of the applicable actions
+   * @param index the position, in the range [0, bitCount(applicableActions))
+   * @return the action
+   */
+  public static int actionAt(long applicableActions, int index) {
+    long mask = applicableActions;
+    for (int i = 0; i < index; i++) {
+      mask &= mask - 1;
+    }
+    return Long.numberOfTrailingZeros(mask);
+  }
+
+  /**
+   * Copies the values of the table into nested arrays
+   *
+   * @return the values, with one row per state
+   */
+  public double[][] toArray() {
+    double[][] rows = new double[stateCount][actionCount];
+    for (int state = 0; state < stateCount; state++) {
+      for (int action = 0; action < actionCount; action++) {
+        rows[state][action] = get(state, action);
+      }
+    }
+    return rows;
+  }
+
+  private static final class DoubleArrayQTable extends QTable {
+
+    private final double[] values;
+
+    DoubleArrayQTable(int stateCount, int actionCount) {
+      super(stateCount, actionCount);
+      this.values = new double[stateCount * actionCount];
+    }
+
+    @Override
+    public double get(int state, int action) {
+      return values[state * actionCount + action];
+    }
+
+    @Override
+    public void set(int state, int action, double value) {
+      values[state * actionCount + action] = value;
+    }
+
+    @Override
+    public void add(int state, int action, double delta) {
+      values[state * actionCount + action] += delta;
+    }
+
+    @Override
+    public double rowMax(int state, long applicableActions) {
+      if (applicableActions == 0) {
+        return 0.0;
+      }
+      int row = state * actionCount;
+      double max = Double.NEGATIVE_INFINITY;
+      for (long mask = applicableActions; mask != 0; mask &= mask - 1) {
+        max = Math.max(max, values[row + Long.numberOfTrailingZeros(mask)]);
+      }
+      return max;
+    }
+  }
+
+  private static final class FloatArrayQTable extends QTable {
+
+    private final float[] values;
+
+    FloatArrayQTable(int stateCount, int actionCount) {
+      super(stateCount, actionCount);
+      this.values = new float[stateCount * actionCount];
+    }
+
+    @Override
+    public double get(int state, int action) {
+      return values[state * actionCount + action];
+    }
+
+    @Override
+    public void set(int state, int action, double value) {
+      values[state * actionCount + action] = (float) value;
+    }
+  }
+
+  private static final class BufferQTable extends QTable {
+
+    private final DoubleBuffer values;
+
+    BufferQTable(int stateCount, int actionCount, DoubleBuffer values) {
+      super(stateCount, actionCount);
+      this.values = values;
+    }
+
+    @Override
+    public double get(int state, int action) {
+      return values.get(state * actionCount + action);
+    }
+
+    @Override
+    public void set(int state, int action, double value) {
+      values.put(state * actionCount + action, value);
+    }
+  }
+}
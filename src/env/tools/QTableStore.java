@@ -0,0 +1,379 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * A directory of Q tables stored in a binary format, one file per goal.
+ *
+ * <p>
+ * Each file starts with a header of {@link #HEADER_BYTES} bytes, followed by the
+ * Q values as big-endian doubles in row-major order (one row of
+ * {@code actionCount} values per state). The header holds, in this order:
+ * </p>
+ * <ul>
+ * <li> the magic number {@link #MAGIC} and the format version (2 ints)
+ * <li> the version of the {@link StateCodec} of the state codes (int)
+ * <li> the number of states and the number of actions (2 ints)
+ * <li> the length of the goal description and its values, padded to
+ * {@link #MAX_GOAL_LENGTH} values (1 + 4 ints)
+ * <li> the number of episodes (int)
+ * <li> the learning rate, the discount factor, the exploration probability and
+ * the goal reward the table was trained with (4 doubles)
+ * </ul>
+ * <p>
+ * Files are written and read through memory-mapped {@link FileChannel}s, so
+ * that listing a store only touches the headers of its files.
+ * </p>
+ */
+public class QTableStore {
+
+  private static final Logger LOGGER = Logger.getLogger(QTableStore.class.getName());
+
+  /**
+   * The magic number of a Q table file ("QTBL")
+   */
+  public static final int MAGIC = 0x5154424C;
+
+  /**
+   * The version of the file format
+   */
+  public static final int FORMAT_VERSION = 1;
+
+  /**
+   * The maximum length of a stored goal description
+   */
+  public static final int MAX_GOAL_LENGTH = 4;
+
+  /**
+   * The size of the header of a Q table file
+   */
+  public static final int HEADER_BYTES = 96;
+
+  private static final String FILE_SUFFIX = ".qtb";
+
+  /**
+   * The header of a stored Q table
+   */
+  public static final class Header {
+
+    private final int[] goal;
+    private final int codecVersion;
+    private final int stateCount;
+    private final int actionCount;
+    private final int episodes;
+    private final double alpha;
+    private final double gamma;
+    private final double epsilon;
+    private final double reward;
+
+    /**
+     * Constructs a header
+     *
+     * @param goal the goal description, e.g. [2,3]
+     * @param codecVersion the version of the state codec of the state codes
+     * @param stateCount the number of states
+     * @param actionCount the number of actions
+     * @param episodes the number of episodes the table was trained for
+     * @param alpha the learning rate
+     * @param gamma the discount factor
+     * @param epsilon the exploration probability
+     * @param reward the reward assigned when reaching the goal state
+     */
+    public Header(int[] goal, int codecVersion, int stateCount, int actionCount, int episodes,
+      double alpha, double gamma, double epsilon, double reward) {
+      if (goal.length > MAX_GOAL_LENGTH) {
+        throw new IllegalArgumentException("Goal descriptions of at most " + MAX_GOAL_LENGTH
+          + " values can be stored: " + Arrays.toString(goal));
+      }
+      this.goal = goal.clone();
+      this.codecVersion = codecVersion;
+      this.stateCount = stateCount;
+      this.actionCount = actionCount;
+      this.episodes = episodes;
+      this.alpha = alpha;
+      this.gamma = gamma;
+      this.epsilon = epsilon;
+      this.reward = reward;
+    }
+
+    public int[] getGoal() {
+      return goal.clone();
+    }
+
+    public int getCodecVersion() {
+      return codecVersion;
+    }
+
+    public int getStateCount() {
+      return stateCount;
+    }
+
+    public int getActionCount() {
+      return actionCount;
+    }
+
+    public int getEpisodes() {
+      return episodes;
+    }
+
+    public double getAlpha() {
+      return alpha;
+    }
+
+    public double getGamma() {
+      return gamma;
+    }
+
+    public double getEpsilon() {
+      return epsilon;
+    }
+
+    public double getReward() {
+      return reward;
+    }
+
+    /**
+     * Returns whether a table with this header can replace a table trained with
+     * the given header, i.e. whether it has the same layout and hyperparameters,
+     * and was trained for at least as many episodes
+     *
+     * @param other the header of the table to replace
+     * @return true if this table can be used instead
+     */
+    public boolean satisfies(Header other) {
+      return Arrays.equals(goal, other.goal)
+        && codecVersion == other.codecVersion
+        && stateCount == other.stateCount
+        && actionCount == other.actionCount
+        && episodes >= other.episodes
+        && alpha == other.alpha
+        && gamma == other.gamma
+        && epsilon == other.epsilon
+        && reward == other.reward;
+    }
+
+    @Override
+    public String toString() {
+      return "Goal: " + Arrays.toString(goal) + ", n=" + stateCount + ", m=" + actionCount
+        + ", episodes=" + episodes + ", alpha=" + alpha + ", gamma=" + gamma
+        + ", epsilon=" + epsilon + ", reward=" + reward;
+    }
+  }
+
+  private final Path directory;
+
+  /**
+   * Constructs a store in a directory, which is created when the first table is written
+   *
+   * @param directory the directory of the store
+   */
+  public QTableStore(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the directory of the store
+   *
+   * @return the directory
+   */
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the path of the file of a goal
+   *
+   * @param goal the goal description, e.g. [2,3]
+   * @return the path, e.g. qtable_2_3.qtb
+   */
+  public Path pathOf(int[] goal) {
+    StringBuilder name = new StringBuilder("qtable");
+    for (int value : goal) {
+      name.append('_').append(value);
+    }
+    return directory.resolve(name.append(FILE_SUFFIX).toString());
+  }
+
+  /**
+   * Reads the headers of all the Q tables of the store
+   *
+   * @return the headers by the paths of their files
+   * @throws IOException if the directory cannot be listed
+   */
+  public Map<Path, Header> list() throws IOException {
+    Map<Path, Header> headers = new LinkedHashMap<>();
+    if (!Files.isDirectory(directory)) {
+      return headers;
+    }
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+      for (Path file : files) {
+        try {
+          headers.put(file, readHeader(file));
+        } catch (IOException e) {
+          LOGGER.warning("Skipping Q table file " + file + ": " + e.getMessage());
+        }
+      }
+    }
+    return headers;
+  }
+
+  /**
+   * Reads the header of a Q table file
+   *
+   * @param file the file
+   * @return the header
+   * @throws IOException if the file cannot be read or is not a Q table file
+   */
+  public Header readHeader(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_BYTES) {
+        throw new IOException("Truncated header");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      Header header = decodeHeader(buffer);
+
+      long expectedSize = HEADER_BYTES + (long) header.stateCount * header.actionCount * Double.BYTES;
+      if (channel.size() != expectedSize) {
+        throw new IOException("Expected " + expectedSize + " bytes but found " + channel.size());
+      }
+      return header;
+    }
+  }
+
+  /**
+   * Writes a Q table to the file of its goal, replacing any previous table
+   *
+   * @param header the header of the table
+   * @param qTable the Q table
+   * @return the path of the file
+   * @throws IOException if the file cannot be written
+   */
+  public Path write(Header header, QTable qTable) throws IOException {
+    if (qTable.getStateCount() != header.stateCount || qTable.getActionCount() != header.actionCount) {
+      throw new IllegalArgumentException("Expected a " + header.stateCount + "x" + header.actionCount
+        + " table but got " + qTable.getStateCount() + "x" + qTable.getActionCount());
+    }
+
+    Files.createDirectories(directory);
+    Path file = pathOf(header.goal);
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    long size = HEADER_BYTES + (long) header.stateCount * header.actionCount * Double.BYTES;
+
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      encodeHeader(header, buffer);
+
+      DoubleBuffer values = buffer.asDoubleBuffer();
+      for (int state = 0; state < header.stateCount; state++) {
+        for (int action = 0; action < header.actionCount; action++) {
+          values.put(qTable.get(state, action));
+        }
+      }
+      buffer.force();
+    }
+
+    // replace the table atomically, so that readers never see a partial file
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    LOGGER.info("Q table for goal " + Arrays.toString(header.goal) + " saved to file: " + file);
+    return file;
+  }
+
+  /**
+   * Maps a Q table file into memory, without copying its values
+   *
+   * @param file the file
+   * @return the read-only Q table backed by the mapped file
+   * @throws IOException if the file cannot be read or is not a Q table file
+   */
+  public QTable map(Path file) throws IOException {
+    Header header = readHeader(file);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel is closed
+      DoubleBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+        (long) header.stateCount * header.actionCount * Double.BYTES).asDoubleBuffer();
+      return QTable.wrap(header.stateCount, header.actionCount, values);
+    }
+  }
+
+  /**
+   * Reads a Q table file into a Q table on the heap, which can be updated
+   *
+   * @param file the file
+   * @param backing the storage of the values of the Q table
+   * @return the Q table
+   * @throws IOException if the file cannot be read or is not a Q table file
+   */
+  public QTable read(Path file, QTable.Backing backing) throws IOException {
+    QTable mapped = map(file);
+    QTable qTable = QTable.create(backing, mapped.getStateCount(), mapped.getActionCount());
+    for (int state = 0; state < mapped.getStateCount(); state++) {
+      for (int action = 0; action < mapped.getActionCount(); action++) {
+        qTable.set(state, action, mapped.get(state, action));
+      }
+    }
+    return qTable;
+  }
+
+  private static void encodeHeader(Header header, ByteBuffer buffer) {
+    buffer.putInt(MAGIC);
+    buffer.putInt(FORMAT_VERSION);
+    buffer.putInt(header.codecVersion);
+    buffer.putInt(header.stateCount);
+    buffer.putInt(header.actionCount);
+    buffer.putInt(header.goal.length);
+    for (int i = 0; i < MAX_GOAL_LENGTH; i++) {
+      buffer.putInt(i < header.goal.length ? header.goal[i] : 0);
+    }
+    buffer.putInt(header.episodes);
+    buffer.putDouble(header.alpha);
+    buffer.putDouble(header.gamma);
+    buffer.putDouble(header.epsilon);
+    buffer.putDouble(header.reward);
+
+    // the rest of the header is reserved
+    buffer.position(HEADER_BYTES);
+  }
+
+  private static Header decodeHeader(ByteBuffer buffer) throws IOException {
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException("Not a Q table file");
+    }
+    int formatVersion = buffer.getInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported format version " + formatVersion);
+    }
+
+    int codecVersion = buffer.getInt();
+    int stateCount = buffer.getInt();
+    int actionCount = buffer.getInt();
+    int goalLength = buffer.getInt();
+    if (goalLength < 0 || goalLength > MAX_GOAL_LENGTH) {
+      throw new IOException("Invalid goal length " + goalLength);
+    }
+
+    int[] goal = new int[goalLength];
+    for (int i = 0; i < MAX_GOAL_LENGTH; i++) {
+      int value = buffer.getInt();
+      if (i < goalLength) {
+        goal[i] = value;
+      }
+    }
+
+    int episodes = buffer.getInt();
+    double alpha = buffer.getDouble();
+    double gamma = buffer.getDouble();
+    double epsilon = buffer.getDouble();
+    double reward = buffer.getDouble();
+
+    return new Header(goal, codecVersion, stateCount, actionCount, episodes, alpha, gamma, epsilon, reward);
+  }
+}
@@ -0,0 +1,175 @@
+package tools;
+
+import java.util.SplittableRandom;
+
+/**
+ * A fixed-capacity buffer of the transitions experienced in a learning
+ * environment, which are replayed to update a Q matrix more than once.
+ *
+ * <p>
+ * Each transition of a {@link Lab} costs an action, a wait for the lab to
+ * settle and a Status read, so a transition that is only used for a single
+ * Q-learning update is expensive. The buffer keeps the most recent transitions
+ * in a ring of parallel primitive arrays (state, action, reward, next state and
+ * whether the goal was reached), and {@link #replay} applies the Q-learning
+ * update to a uniformly sampled mini-batch of them between the steps of the
+ * environment. Adding and replaying transitions allocates no memory.
+ * </p>
+ * <p>
+ * The transitions are the ones of one goal, so each goal uses its own buffer.
+ * The rewards are stored without the goal bonus, which is added when a
+ * transition that reached the goal is replayed, so that the transitions stay
+ * valid when a goal is trained again with another goal reward (see
+ * {@link TrainingEngine#reward}). A buffer is not thread-safe.
+ * </p>
+ */
+public final class ReplayBuffer {
+
+  private final int[] states;
+  private final int[] actions;
+  private final double[] rewards;
+  private final int[] nextStates;
+  private final boolean[] dones;
+
+  private int next;
+  private int size;
+  private long added;
+
+  /**
+   * Constructs an empty buffer
+   *
+   * @param capacity the maximum number of transitions, after which the oldest transitions are overwritten
+   */
+  public ReplayBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid replay buffer capacity " + capacity);
+    }
+    this.states = new int[capacity];
+    this.actions = new int[capacity];
+    this.rewards = new double[capacity];
+    this.nextStates = new int[capacity];
+    this.dones = new boolean[capacity];
+  }
+
+  /**
+   * Adds a transition, overwriting the oldest transition if the buffer is full
+   *
+   * @param state the state before the transition
+   * @param action the action performed in the state
+   * @param reward the reward of the transition, without the goal bonus
+   * @param nextState the state after the transition
+   * @param done whether the transition reached the goal
+   */
+  public void add(int state, int action, double reward, int nextState, boolean done) {
+    states[next] = state;
+    actions[next] = action;
+    rewards[next] = reward;
+    nextStates[next] = nextState;
+    dones[next] = done;
+
+    next = next + 1 == states.length ? 0 : next + 1;
+    if (size < states.length) {
+      size++;
+    }
+    added++;
+  }
+
+  /**
+   * Applies the Q-learning update to a mini-batch of transitions, sampled
+   * uniformly with replacement. The update is the one of an online step of a
+   * {@link TrainingEngine}, so that replayed and online updates converge to the
+   * same values.
+   *
+   * @param qTable the Q matrix to update
+   * @param env the environment whose applicable actions bound the maximum of the next state
+   * @param batchSize the number of updates
+   * @param alpha the learning rate
+   * @param gamma the discount factor
+   * @param goalReward the reward added to the transitions that reached the goal
+   * @param random the random number generator used for sampling
+   * @return the sum of the absolute changes of the Q values
+   */
+  public double replay(QTable qTable, LearningEnvironment env, int batchSize, double alpha, double gamma,
+    double goalReward, SplittableRandom random) {
+    if (size == 0) {
+      return 0.0;
+    }
+    double qChangeSum = 0;
+    for (int i = 0; i < batchSize; i++) {
+      int index = random.nextInt(size);
+      int state = states[index];
+      int action = actions[index];
+      int nextState = nextStates[index];
+
+      double reward = dones[index] ? rewards[index] + goalReward : rewards[index];
+      double maxQNext = qTable.rowMax(nextState, env.getApplicableActionMask(nextState));
+      double qChange = alpha * (reward + gamma * maxQNext - qTable.get(state, action));
+      qTable.add(state, action, qChange);
+      qChangeSum += Math.abs(qChange);
+    }
+    return qChangeSum;
+  }
+
+  /**
+   * Removes all the transitions
+   */
+  public void clear() {
+    next = 0;
+    size = 0;
+  }
+
+  /**
+   * Returns the number of transitions in the buffer
+   *
+   * @return the number of transitions, at most the capacity
+   */
+  public int size() {
+    return size;
+  }
+
+  public int getCapacity() {
+    return states.length;
+  }
+
+  /**
+   * Returns the number of transitions added since the buffer was constructed,
+   * including the ones that have been overwritten
+   *
+   * @return the number of added transitions
+   */
+  public long getAddedCount() {
+    return added;
+  }
+
+  /**
+   * Returns the state before a transition
+   *
+   * @param index the index of the transition, in the range [0, size())
+   * @return the state code
+   */
+  public int getState(int index) {
+    return states[index];
+  }
+
+  public int getAction(int index) {
+    return actions[index];
+  }
+
+  /**
+   * Returns the reward of a transition, without the goal bonus
+   *
+   * @param index the index of the transition, in the range [0, size())
+   * @return the reward
+   */
+  public double getReward(int index) {
+    return rewards[index];
+  }
+
+  public int getNextState(int index) {
+    return nextStates[index];
+  }
+
+  public boolean isDone(int index) {
+    return dones[index];
+  }
+}
@@ -0,0 +1,355 @@
+package tools;
+
+import java.util.*;
+import java.util.logging.*;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+import com.google.common.collect.Sets;
+
+/**
+ * A class that extends {@link LearningEnvironment} for representing an
+ * in-process simulation of the lab of the Interactions group.
+ *
+ * <p> The dynamics are ported from the "Update action" and "Update environment"
+ * functions of the Node-RED flow in simulator/simulator_flow.json, so that
+ * training does not need HTTP or a running Node-RED instance. The state space
+ * and the action space are the same as the ones of a {@link Lab}, and the
+ * state codes of both environments are interchangeable.
+ * </p>
+ *
+ * <p> Instead of updating every second of wall time, the simulation runs on a
+ * simulated clock: each performed action advances the clock by a fixed number
+ * of ticks, where each tick corresponds to one second of the Node-RED flow
+ * (i.e. 0.1 hours of simulated daytime). The sunshine is drawn from a seedable
+ * random number generator, so that simulations are reproducible.
+ * </p>
+ */
+public class SimulatedLab extends LearningEnvironment {
+
+  private static final Logger LOGGER = Logger.getLogger(SimulatedLab.class.getName());
+
+  /**
+   * The semantic types of the affordances of the actions, with the payload tag
+   * of each affordance at the same position
+   */
+  private static final List<String> AFFORDANCE_TYPES = Arrays.asList(
+    "http://example.org/was#SetZ1Light",
+    "http://example.org/was#SetZ2Light",
+    "http://example.org/was#SetZ1Blinds",
+    "http://example.org/was#SetZ2Blinds"
+  );
+
+  private static final List<String> PAYLOAD_TAGS = Arrays.asList("Z1Light", "Z2Light", "Z1Blinds", "Z2Blinds");
+
+  /**
+   * The simulated time of a tick of the Node-RED flow in milliseconds
+   */
+  public static final long TICK_MILLIS = 1000;
+
+  private final Random random;
+  private final int ticksPerAction;
+
+  private double z1Level;
+  private double z2Level;
+  private boolean z1Light;
+  private boolean z2Light;
+  private boolean z1Blinds;
+  private boolean z2Blinds;
+  private double sunshine;
+  private double totalEnergyCost;
+  private double energyCost;
+  private double hour;
+  private long clockMillis;
+
+  /**
+   * The values of the last read of the state, from which its observation is
+   * only created when it is requested
+   */
+  private final int[] values = new int[7];
+  private int observedState = -1;
+  private double observedZ1Lux;
+  private double observedZ2Lux;
+  private double observedSunshineLux;
+  private double observedEnergyCost;
+  private long observedClockMillis;
+  private boolean observationPending;
+
+  /**
+   * A {@link SimulatedLab} instance is constructed based on the seed of its
+   * random number generator. Each performed action advances the simulation by
+   * one tick.
+   *
+   * @param seed the seed of the random number generator
+   */
+  public SimulatedLab(long seed) {
+    this(seed, 1);
+  }
+
+  /**
+   * A {@link SimulatedLab} instance is constructed based on the seed of its
+   * random number generator and the number of ticks that each performed action
+   * advances the simulation.
+   *
+   * @param seed the seed of the random number generator
+   * @param ticksPerAction the number of ticks per performed action
+   */
+  public SimulatedLab(long seed, int ticksPerAction) {
+    if (ticksPerAction < 1) {
+      throw new IllegalArgumentException("An action must advance the simulation by at least one tick");
+    }
+    this.random = new Random(seed);
+    this.ticksPerAction = ticksPerAction;
+
+    setStateCodec(StateCodec.LAB);
+    List<Set<Integer>> axes = new ArrayList<>();
+    for (int axis = 0; axis < stateCodec.getAxisCount(); axis++) {
+      axes.add(ContiguousSet.create(Range.closedOpen(0, stateCodec.getRadix(axis)), DiscreteDomain.integers()));
+    }
+    this.stateSpace = Sets.cartesianProduct(axes);
+
+    createActionSpace();
+    LOGGER.fine("The simulated lab has a state space of n=" + getStateCount()
+      + " and an action space of m=" + getActionCount());
+
+    // Tick once, as the "Repeat" inject node of the flow does after deployment
+    tick();
+    readCurrentState();
+  }
+
+  /**
+   * @see {@link LearningEnvironment#readCurrentState()}
+   */
+  @Override
+  public int readCurrentState() {
+    values[0] = discretizeLightLevel(z1Level);
+    values[1] = discretizeLightLevel(z2Level);
+    values[2] = z1Light ? 1 : 0;
+    values[3] = z2Light ? 1 : 0;
+    values[4] = z1Blinds ? 1 : 0;
+    values[5] = z2Blinds ? 1 : 0;
+    values[6] = discretizeSunshine(sunshine);
+
+    observedState = stateCodec.encode(values);
+    observedZ1Lux = z1Level;
+    observedZ2Lux = z2Level;
+    observedSunshineLux = sunshine;
+    observedEnergyCost = energyCost;
+    observedClockMillis = clockMillis;
+    observationPending = true;
+    return observedState;
+  }
+
+  /**
+   * Returns the observation of the last read, which is only created when it
+   * is requested, so that reads that only need the state code do not allocate
+   *
+   * @see {@link LearningEnvironment#getLastObservation()}
+   */
+  @Override
+  public Observation getLastObservation() {
+    if (observationPending) {
+      observationPending = false;
+      publish(new Observation(observedState, values, observedZ1Lux, observedZ2Lux, observedSunshineLux,
+        observedEnergyCost, observedClockMillis));
+    }
+    return super.getLastObservation();
+  }
+
+  /**
+   * Appends a transition to a log from the values of the last read, without
+   * creating its observation
+   *
+   * @see {@link LearningEnvironment#logTransition(TransitionLog.Writer, int, int, int, double)}
+   */
+  @Override
+  public void logTransition(TransitionLog.Writer log, int source, int previousState, int action, double reward) {
+    if (observedState >= 0) {
+      log.append(observedClockMillis, previousState, action, observedState, observedZ1Lux, observedZ2Lux,
+        observedSunshineLux, reward, observedEnergyCost, source);
+    }
+  }
+
+  /**
+   * @see {@link LearningEnvironment#getTrainingSource()}
+   * @return {@link TransitionLog#SOURCE_SIMULATION}, since the timestamps are simulated milliseconds
+   */
+  @Override
+  public int getTrainingSource() {
+    return TransitionLog.SOURCE_SIMULATION;
+  }
+
+  /**
+   * @see {@link LearningEnvironment#getCurrentState()}
+   */
+  @Override
+  public List<Integer> getCurrentState() {
+    readCurrentState();
+    return getLastObservation().getValues();
+  }
+
+  /**
+   * Performs an action as the "Update action" function of the flow does, and
+   * advances the simulation.
+   *
+   * @see {@link LearningEnvironment#performAction(int)}
+   */
+  @Override
+  public void performAction(int action) {
+    Action a = actionSpace.get(action);
+    boolean value = (Boolean) a.getPayload()[0];
+
+    switch (AFFORDANCE_TYPES.indexOf(a.getActionTag())) {
+      case 0:
+        if (!z1Light && value) {
+          energyCost = 100;
+        }
+        z1Light = value;
+        break;
+      case 1:
+        if (!z2Light && value) {
+          energyCost = 100;
+        }
+        z2Light = value;
+        break;
+      case 2:
+        if (!z1Blinds && value) {
+          energyCost = 5;
+        }
+        z1Blinds = value;
+        break;
+      case 3:
+        if (!z2Blinds && value) {
+          energyCost = 5;
+        }
+        z2Blinds = value;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown action: " + a);
+    }
+
+    for (int i = 0; i < ticksPerAction; i++) {
+      tick();
+    }
+  }
+
+  /**
+   * Advances the simulation by one tick, as the "Update environment" function
+   * of the flow does
+   */
+  private void tick() {
+    double sun = this.sunshine;
+
+    if (hour >= 24) {
+      hour = 0;
+    }
+    hour += 0.1;
+
+    // Somewhat fixed sunshine
+    sunshine = 600 + 50 * random.nextDouble();
+
+    double z1 = 0;
+    z1 += z1Light ? 300 : 0;
+    z1 += z2Light ? 50 : 0;
+    z1 += z1Blinds ? sun * 0.5 : 0;
+    z1 += z2Blinds ? sun * 0.25 : 0;
+
+    double z2 = 0;
+    z2 += z1Light ? 50 : 0;
+    z2 += z2Light ? 300 : 0;
+    z2 += z1Blinds ? sun * 0.25 : 0;
+    z2 += z2Blinds ? sun * 0.5 : 0;
+
+    totalEnergyCost += z1Light ? 1 : 0;
+    totalEnergyCost += z2Light ? 1 : 0;
+
+    z1Level = z1;
+    z2Level = z2;
+    clockMillis += TICK_MILLIS;
+  }
+
+  /**
+   * Returns the simulated time that has passed since the construction of the
+   * simulation
+   *
+   * @return the simulated time in milliseconds
+   */
+  public long getClockMillis() {
+    return clockMillis;
+  }
+
+  /**
+   * Returns the simulated hour of the day in the range [0, 24.1)
+   *
+   * @return the hour
+   */
+  public double getHour() {
+    return hour;
+  }
+
+  /**
+   * Returns the light level in Zone 1 in lux
+   *
+   * @return the light level
+   */
+  public double getZ1Lux() {
+    return z1Level;
+  }
+
+  /**
+   * Returns the light level in Zone 2 in lux
+   *
+   * @return the light level
+   */
+  public double getZ2Lux() {
+    return z2Level;
+  }
+
+  /**
+   * Returns the sunshine out of the lab in lux
+   *
+   * @return the sunshine
+   */
+  public double getSunshineLux() {
+    return sunshine;
+  }
+
+  /**
+   * Returns the cost of the last action that switched on a light or opened blinds
+   *
+   * @return the energy cost
+   */
+  public double getEnergyCost() {
+    return energyCost;
+  }
+
+  /**
+   * Returns the energy consumed by the lights since the construction of the simulation
+   *
+   * @return the total energy cost
+   */
+  public double getTotalEnergyCost() {
+    return totalEnergyCost;
+  }
+
+  /**
+   * Creates the action space of the simulated lab with the same keys as the
+   * action space of a {@link Lab}
+   */
+  private void createActionSpace() {
+    this.affordanceTypes = AFFORDANCE_TYPES;
+
+    for (int i = 0; i < AFFORDANCE_TYPES.size(); i++) {
+      for (boolean propValue : Arrays.asList(false, true)) {
+        Action action = new Action(AFFORDANCE_TYPES.get(i), new Object[]{PAYLOAD_TAGS.get(i)},
+          new Object[]{propValue}, null);
+
+        // switching on (off) is applicable if the light or blinds are off (on), on axes 2 to 5
+        action.setApplicableOn(2 + i, propValue ? 0 : 1);
+        actionSpace.put(actionSpace.size(), action);
+      }
+    }
+    indexApplicableActions();
+  }
+}
@@ -0,0 +1,269 @@
+package tools;
+
+import java.util.Arrays;
+
+/**
+ * A {@link QTable} that only stores the rows of the states that have been
+ * updated, for state spaces that are too large to be stored densely.
+ *
+ * <p>
+ * The rows are keyed by the packed state code (a {@code long}, so that codes
+ * beyond the range of a dense {@link StateCodec} can be stored as well) in an
+ * open-addressing hash index with linear probing. The index maps each code to
+ * the position of its row, and the rows are appended to one flat array in the
+ * order in which the states are first updated. Neither keys nor values are
+ * boxed, and the memory of the table grows with the number of updated states:
+ * about {@code 8 * actionCount} bytes per row plus at most {@code 24} bytes of
+ * index per row.
+ * </p>
+ * <p>
+ * Reading a state that has never been updated returns 0 for all actions, as a
+ * freshly created dense Q table does.
+ * </p>
+ */
+public final class SparseQTable extends QTable {
+
+  private static final long EMPTY = -1;
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private long[] keys;
+  private int[] rows;
+  private int mask;
+  private int size;
+  private double[] values;
+
+  /**
+   * Constructs an empty table
+   *
+   * @param stateCount the number of states addressed through the {@code int} methods of {@link QTable}
+   * @param actionCount the number of actions, at most 64
+   */
+  public SparseQTable(int stateCount, int actionCount) {
+    this(stateCount, actionCount, INITIAL_CAPACITY);
+  }
+
+  /**
+   * Constructs an empty table with room for an expected number of states
+   *
+   * @param stateCount the number of states addressed through the {@code int} methods of {@link QTable}
+   * @param actionCount the number of actions, at most 64
+   * @param expectedStates the number of states that are expected to be updated
+   */
+  public SparseQTable(int stateCount, int actionCount, int expectedStates) {
+    super(stateCount, actionCount);
+    int capacity = Integer.highestOneBit(Math.max(INITIAL_CAPACITY, expectedStates) * 2 - 1) << 1;
+    this.keys = new long[capacity];
+    Arrays.fill(keys, EMPTY);
+    this.rows = new int[capacity];
+    this.mask = capacity - 1;
+    this.values = new double[Math.max(INITIAL_CAPACITY, expectedStates) * actionCount];
+  }
+
+  /**
+   * Returns the number of states whose rows are stored
+   *
+   * @return the number of stored rows
+   */
+  public int getStoredStateCount() {
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes allocated by the index and the rows of the table
+   *
+   * @return the allocated bytes, excluding the object headers
+   */
+  public long getFootprintBytes() {
+    return (long) keys.length * Long.BYTES + (long) rows.length * Integer.BYTES
+      + (long) values.length * Double.BYTES;
+  }
+
+  @Override
+  public double get(int state, int action) {
+    return get((long) state, action);
+  }
+
+  @Override
+  public void set(int state, int action, double value) {
+    set((long) state, action, value);
+  }
+
+  @Override
+  public void add(int state, int action, double delta) {
+    add((long) state, action, delta);
+  }
+
+  @Override
+  public double rowMax(int state, long applicableActions) {
+    return rowMax((long) state, applicableActions);
+  }
+
+  @Override
+  public int rowArgMax(int state, long applicableActions) {
+    return rowArgMax((long) state, applicableActions);
+  }
+
+  /**
+   * Returns the value of an action in a state
+   *
+   * @param state the packed state code
+   * @param action the action
+   * @return the Q value, or 0 if the state has not been updated
+   */
+  public double get(long state, int action) {
+    int row = find(state);
+    return row < 0 ? 0.0 : values[row + action];
+  }
+
+  /**
+   * Sets the value of an action in a state
+   *
+   * @param state the packed state code
+   * @param action the action
+   * @param value the Q value
+   */
+  public void set(long state, int action, double value) {
+    // the row is found first, as inserting it may replace the array of values
+    int row = findOrInsert(state);
+    values[row + action] = value;
+  }
+
+  /**
+   * Adds to the value of an action in a state
+   *
+   * @param state the packed state code
+   * @param action the action
+   * @param delta the change of the Q value
+   */
+  public void add(long state, int action, double delta) {
+    int row = findOrInsert(state);
+    values[row + action] += delta;
+  }
+
+  /**
+   * @see QTable#rowMax(int, long)
+   */
+  public double rowMax(long state, long applicableActions) {
+    if (applicableActions == 0) {
+      return 0.0;
+    }
+    int row = find(state);
+    if (row < 0) {
+      return 0.0;
+    }
+    double max = Double.NEGATIVE_INFINITY;
+    for (long m = applicableActions; m != 0; m &= m - 1) {
+      max = Math.max(max, values[row + Long.numberOfTrailingZeros(m)]);
+    }
+    return max;
+  }
+
+  /**
+   * @see QTable#rowArgMax(int, long)
+   */
+  public int rowArgMax(long state, long applicableActions) {
+    if (applicableActions == 0) {
+      return -1;
+    }
+    int row = find(state);
+    if (row < 0) {
+      return Long.numberOfTrailingZeros(applicableActions);
+    }
+    int best = -1;
+    double max = Double.NEGATIVE_INFINITY;
+    for (long m = applicableActions; m != 0; m &= m - 1) {
+      int action = Long.numberOfTrailingZeros(m);
+      if (best < 0 || values[row + action] > max) {
+        max = values[row + action];
+        best = action;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the offset of the row of a state, or -1 if the state is not stored
+   */
+  private int find(long state) {
+    if (state < 0) {
+      // a negative code would match the first empty slot, whose key is EMPTY
+      throw new IllegalArgumentException("State codes must not be negative: " + state);
+    }
+    for (int slot = slot(state); ; slot = (slot + 1) & mask) {
+      long key = keys[slot];
+      if (key == state) {
+        return rows[slot];
+      }
+      if (key == EMPTY) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Returns the offset of the row of a state, appending a row of zeros if the state is not stored
+   */
+  private int findOrInsert(long state) {
+    if (state < 0) {
+      throw new IllegalArgumentException("State codes must not be negative: " + state);
+    }
+    for (int slot = slot(state); ; slot = (slot + 1) & mask) {
+      long key = keys[slot];
+      if (key == state) {
+        return rows[slot];
+      }
+      if (key == EMPTY) {
+        return insert(slot, state);
+      }
+    }
+  }
+
+  private int insert(int slot, long state) {
+    // keep the load factor of the index at most 1/2
+    if (2 * (size + 1) > keys.length) {
+      grow();
+      return findOrInsert(state);
+    }
+
+    int row = size * actionCount;
+    if (row + actionCount > values.length) {
+      values = Arrays.copyOf(values, Math.max(values.length * 2, row + actionCount));
+    }
+    keys[slot] = state;
+    rows[slot] = row;
+    size++;
+    return row;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldRows = rows;
+
+    keys = new long[oldKeys.length * 2];
+    Arrays.fill(keys, EMPTY);
+    rows = new int[oldRows.length * 2];
+    mask = keys.length - 1;
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        rows[slot] = oldRows[i];
+      }
+    }
+  }
+
+  private int slot(long state) {
+    // the finalizer of MurmurHash3, which spreads consecutive codes over the index
+    long h = state;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h & mask;
+  }
+}
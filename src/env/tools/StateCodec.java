@@ -0,0 +1,204 @@
+package tools;
+
+import java.util.*;
+
+/**
+ * A mixed-radix codec that maps the states of a {@link LearningEnvironment}
+ * to dense integer codes and back by arithmetic.
+ *
+ * <p>
+ * A state is a list of axis values, where the value of axis {@code i} lies in
+ * the range [0, radix(i)). The code of a state is computed with the first axis
+ * as the most significant digit and the last axis as the least significant
+ * digit, i.e. the same lexicographic ordering used by the cartesian product of
+ * the axis value sets. For the lab state
+ * [z1Level, z2Level, z1Light, z2Light, z1Blinds, z2Blinds, sunshine] with radices
+ * [4, 4, 2, 2, 2, 2, 4], the state [0,0,0,0,0,0,1] has the code 1, the state
+ * [0,0,0,0,0,1,0] has the code 4, and the state [3,3,1,1,1,1,3] has the code 1023.
+ * </p>
+ * <p>
+ * The ordering is stable: codes produced by this class are the row indices of
+ * the Q tables computed by {@link QLearner}.
+ * </p>
+ */
+public final class StateCodec {
+
+  /**
+   * The codec of the lab state [z1Level, z2Level, z1Light, z2Light, z1Blinds, z2Blinds, sunshine]
+   */
+  public static final StateCodec LAB = new StateCodec(4, 4, 2, 2, 2, 2, 4);
+
+  /**
+   * The version of the ordering of the codes, to be increased whenever the
+   * mapping between states and codes changes
+   */
+  private static final int ORDERING_VERSION = 1;
+
+  private final int[] radices;
+  private final int[] strides;
+  private final int stateCount;
+
+  /**
+   * Constructs a codec for a state space with the given number of values per axis
+   *
+   * @param radices the number of values of each axis, from the most significant axis
+   * to the least significant axis
+   */
+  public StateCodec(int... radices) {
+    if (radices.length == 0) {
+      throw new IllegalArgumentException("A state must have at least one axis");
+    }
+
+    this.radices = radices.clone();
+    this.strides = new int[radices.length];
+
+    long stride = 1;
+    for (int axis = radices.length - 1; axis >= 0; axis--) {
+      if (radices[axis] < 1) {
+        throw new IllegalArgumentException("Axis " + axis + " has no values: " + radices[axis]);
+      }
+      this.strides[axis] = (int) stride;
+      stride *= radices[axis];
+      if (stride > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("The state space is too large to be densely encoded: "
+          + Arrays.toString(radices));
+      }
+    }
+    this.stateCount = (int) stride;
+  }
+
+  /**
+   * Returns the number of axes of a state
+   *
+   * @return the number of axes
+   */
+  public int getAxisCount() {
+    return radices.length;
+  }
+
+  /**
+   * Returns the number of values of an axis
+   *
+   * @param axis the axis
+   * @return the number of values
+   */
+  public int getRadix(int axis) {
+    return radices[axis];
+  }
+
+  /**
+   * Returns the number of states, i.e. the product of all radices
+   *
+   * @return the number of states
+   */
+  public int getStateCount() {
+    return stateCount;
+  }
+
+  /**
+   * Returns the version of the codec. Codes that are persisted together with
+   * the version (e.g. as Q table rows) are only valid for codecs with the same version.
+   *
+   * @return the version, derived from the ordering and the radices of the codec
+   */
+  public int getVersion() {
+    return 31 * ORDERING_VERSION + Arrays.hashCode(radices);
+  }
+
+  /**
+   * Encodes a state given as an array of axis values
+   *
+   * @param values the axis values
+   * @return the code of the state
+   */
+  public int encode(int[] values) {
+    checkAxisCount(values.length);
+    int code = 0;
+    for (int axis = 0; axis < radices.length; axis++) {
+      code += checkValue(axis, values[axis]) * strides[axis];
+    }
+    return code;
+  }
+
+  /**
+   * Encodes a state given as a list of axis values
+   *
+   * @param values the axis values, e.g. [0,1,0,1,0,0,2]
+   * @return the code of the state
+   */
+  public int encode(List<Integer> values) {
+    checkAxisCount(values.size());
+    int code = 0;
+    for (int axis = 0; axis < radices.length; axis++) {
+      code += checkValue(axis, values.get(axis)) * strides[axis];
+    }
+    return code;
+  }
+
+  /**
+   * Returns the value of a single axis of an encoded state
+   *
+   * @param code the code of the state
+   * @param axis the axis
+   * @return the value of the axis
+   */
+  public int axisValue(int code, int axis) {
+    return (code / strides[axis]) % radices[axis];
+  }
+
+  /**
+   * Decodes a state into the given array
+   *
+   * @param code the code of the state
+   * @param values the array that receives the axis values
+   * @return the given array
+   */
+  public int[] decode(int code, int[] values) {
+    checkCode(code);
+    checkAxisCount(values.length);
+    for (int axis = 0; axis < radices.length; axis++) {
+      values[axis] = axisValue(code, axis);
+    }
+    return values;
+  }
+
+  /**
+   * Decodes a state into a list of axis values
+   *
+   * @param code the code of the state
+   * @return the axis values, e.g. [0,1,0,1,0,0,2]
+   */
+  public List<Integer> decode(int code) {
+    checkCode(code);
+    Integer[] values = new Integer[radices.length];
+    for (int axis = 0; axis < radices.length; axis++) {
+      values[axis] = axisValue(code, axis);
+    }
+    return Arrays.asList(values);
+  }
+
+  private int checkValue(int axis, int value) {
+    if (value < 0 || value >= radices[axis]) {
+      throw new IllegalArgumentException("Value " + value + " is out of range for axis " + axis
+        + " with " + radices[axis] + " values");
+    }
+    return value;
+  }
+
+  private void checkAxisCount(int axisCount) {
+    if (axisCount != radices.length) {
+      throw new IllegalArgumentException("Expected " + radices.length + " axis values but got " + axisCount);
+    }
+  }
+
+  private void checkCode(int code) {
+    if (code < 0 || code >= stateCount) {
+      throw new IllegalArgumentException("State code " + code + " is out of range [0, " + stateCount + ")");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "StateCodec" + Arrays.toString(radices);
+  }
+}
@@ -0,0 +1,188 @@
+package tools;
+
+import java.util.function.IntSupplier;
+import java.util.logging.*;
+
+/**
+ * Synchronizes the steps of a learning environment whose state reacts to
+ * actions asynchronously, e.g. a {@link Lab} whose Status property is updated
+ * by the lab (or the simulator) at its own pace.
+ *
+ * <p>
+ * After an action has been performed, the synchronizer polls the discretized
+ * state of the environment with an exponential backoff until the state has not
+ * changed for a minimum stable time, or until a deadline passes. The time it
+ * took to settle is reported after each step.
+ * </p>
+ */
+public class StepSynchronizer {
+
+  private static final Logger LOGGER = Logger.getLogger(StepSynchronizer.class.getName());
+
+  /**
+   * The default minimum time the state must stay unchanged. It covers the update
+   * period of 1 s of the simulator flow.
+   */
+  public static final long DEFAULT_MIN_STABLE_MILLIS = 1100;
+
+  /**
+   * The default first poll interval
+   */
+  public static final long DEFAULT_INITIAL_POLL_MILLIS = 50;
+
+  /**
+   * The default longest poll interval
+   */
+  public static final long DEFAULT_MAX_POLL_MILLIS = 400;
+
+  /**
+   * The default time after which the state is read regardless of its stability
+   */
+  public static final long DEFAULT_DEADLINE_MILLIS = 10000;
+
+  private final IntSupplier stateProbe;
+  private final long minStableMillis;
+  private final long initialPollMillis;
+  private final long maxPollMillis;
+  private final long deadlineMillis;
+
+  private long lastSettleMillis;
+  private boolean lastTimedOut;
+  private long settleCount;
+  private long timeoutCount;
+  private long totalSettleMillis;
+
+  /**
+   * Constructs a synchronizer with the default timing
+   *
+   * @param stateProbe reads the current state of the environment, e.g. {@link Lab#readCurrentState()}
+   */
+  public StepSynchronizer(IntSupplier stateProbe) {
+    this(stateProbe, DEFAULT_MIN_STABLE_MILLIS, DEFAULT_INITIAL_POLL_MILLIS,
+      DEFAULT_MAX_POLL_MILLIS, DEFAULT_DEADLINE_MILLIS);
+  }
+
+  /**
+   * Constructs a synchronizer
+   *
+   * @param stateProbe reads the current state of the environment, e.g. {@link Lab#readCurrentState()}
+   * @param minStableMillis the minimum time the state must stay unchanged
+   * @param initialPollMillis the first poll interval, doubled after each poll
+   * @param maxPollMillis the longest poll interval
+   * @param deadlineMillis the time after which the state is read regardless of its stability
+   */
+  public StepSynchronizer(IntSupplier stateProbe, long minStableMillis, long initialPollMillis,
+    long maxPollMillis, long deadlineMillis) {
+    if (initialPollMillis < 1 || maxPollMillis < initialPollMillis || deadlineMillis < minStableMillis) {
+      throw new IllegalArgumentException("Invalid timing: minStable=" + minStableMillis + ", initialPoll="
+        + initialPollMillis + ", maxPoll=" + maxPollMillis + ", deadline=" + deadlineMillis);
+    }
+    this.stateProbe = stateProbe;
+    this.minStableMillis = minStableMillis;
+    this.initialPollMillis = initialPollMillis;
+    this.maxPollMillis = maxPollMillis;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * Polls the state until it has settled or the deadline passes.
+   *
+   * @return the settled state, or the last state read when the deadline passed
+   */
+  public int awaitSettled() {
+    long start = System.nanoTime();
+    long deadline = start + deadlineMillis * 1_000_000L;
+
+    int state = stateProbe.getAsInt();
+    long stableSince = System.nanoTime();
+    long pollMillis = initialPollMillis;
+    boolean timedOut = false;
+
+    while (System.nanoTime() - stableSince < minStableMillis * 1_000_000L) {
+      long now = System.nanoTime();
+      if (now >= deadline) {
+        timedOut = true;
+        break;
+      }
+
+      long remainingMillis = Math.max(1, (deadline - now) / 1_000_000L);
+      try {
+        Thread.sleep(Math.min(pollMillis, remainingMillis));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        timedOut = true;
+        break;
+      }
+      pollMillis = Math.min(pollMillis * 2, maxPollMillis);
+
+      int polledState = stateProbe.getAsInt();
+      if (polledState != state) {
+        // the state is still changing, restart the stability window and poll faster
+        state = polledState;
+        stableSince = System.nanoTime();
+        pollMillis = initialPollMillis;
+      }
+    }
+
+    record((System.nanoTime() - start) / 1_000_000L, timedOut);
+    return state;
+  }
+
+  private synchronized void record(long settleMillis, boolean timedOut) {
+    this.lastSettleMillis = settleMillis;
+    this.lastTimedOut = timedOut;
+    this.settleCount++;
+    this.totalSettleMillis += settleMillis;
+    if (timedOut) {
+      this.timeoutCount++;
+      LOGGER.warning("The state did not settle within " + deadlineMillis + " ms");
+    } else {
+      LOGGER.fine("The state settled after " + settleMillis + " ms");
+    }
+  }
+
+  /**
+   * Returns how long the last step took to settle
+   *
+   * @return the settle time in milliseconds
+   */
+  public synchronized long getLastSettleMillis() {
+    return lastSettleMillis;
+  }
+
+  /**
+   * Returns whether the deadline passed before the last step settled
+   *
+   * @return true if the last step timed out
+   */
+  public synchronized boolean isLastTimedOut() {
+    return lastTimedOut;
+  }
+
+  /**
+   * Returns the mean settle time of all steps so far
+   *
+   * @return the mean settle time in milliseconds
+   */
+  public synchronized double getMeanSettleMillis() {
+    return settleCount == 0 ? 0.0 : (double) totalSettleMillis / settleCount;
+  }
+
+  /**
+   * Returns the number of steps synchronized so far
+   *
+   * @return the number of steps
+   */
+  public synchronized long getSettleCount() {
+    return settleCount;
+  }
+
+  /**
+   * Returns the number of steps that did not settle before the deadline
+   *
+   * @return the number of timeouts
+   */
+  public synchronized long getTimeoutCount() {
+    return timeoutCount;
+  }
+}
@@ -0,0 +1,281 @@
+package tools;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.*;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.ParseException;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.util.Timeout;
+
+import ch.unisg.ics.interactions.wot.td.ThingDescription;
+import ch.unisg.ics.interactions.wot.td.ThingDescription.TDFormat;
+import ch.unisg.ics.interactions.wot.td.io.TDGraphReader;
+
+/**
+ * A cache of W3C Web of Things Thing Descriptions in the Turtle format.
+ *
+ * <p>
+ * The cache has two levels. In the JVM, the parsed {@link ThingDescription} of
+ * each URL is kept, so that creating several artifacts for the same lab reads
+ * and parses the description only once. On disk, the Turtle documents are
+ * stored by the SHA-256 hash of their content, together with an index entry
+ * per URL that holds the hash of the current document and its HTTP validators
+ * (ETag and Last-Modified). Documents are revalidated with a conditional
+ * request, and the stored copy is used when the URL cannot be reached, so that
+ * labs can be created offline once their descriptions have been fetched.
+ * </p>
+ */
+public class ThingDescriptionCache {
+
+  private static final Logger LOGGER = Logger.getLogger(ThingDescriptionCache.class.getName());
+
+  /**
+   * The system property that sets the directory of the default cache
+   */
+  public static final String DIRECTORY_PROPERTY = "td.cache.dir";
+
+  /**
+   * The directory of the default cache if the system property is not set
+   */
+  public static final String DEFAULT_DIRECTORY = ".td-cache";
+
+  private static final int TIMEOUT_SECONDS = 10;
+
+  private static final String URL_KEY = "url";
+  private static final String CONTENT_KEY = "sha256";
+  private static final String ETAG_KEY = "etag";
+  private static final String LAST_MODIFIED_KEY = "lastModified";
+
+  private static ThingDescriptionCache defaultCache;
+
+  private final Path directory;
+  private final Map<String, ThingDescription> parsed = new ConcurrentHashMap<>();
+
+  /**
+   * Constructs a cache that stores documents in a directory
+   *
+   * @param directory the directory, which is created when the first document is stored
+   */
+  public ThingDescriptionCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the cache shared by all the labs of the JVM
+   *
+   * @return the default cache
+   */
+  public static synchronized ThingDescriptionCache getDefault() {
+    if (defaultCache == null) {
+      defaultCache = new ThingDescriptionCache(Paths.get(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY)));
+    }
+    return defaultCache;
+  }
+
+  /**
+   * Returns the Thing Description of a URL, reading it from the network or from
+   * the disk only if it has not been parsed in this JVM yet
+   *
+   * @param url the location of the Thing Description in the Turtle format
+   * @return the Thing Description
+   * @throws IOException if the Thing Description can neither be fetched nor found in the cache
+   */
+  public ThingDescription get(String url) throws IOException {
+    ThingDescription td = parsed.get(url);
+    if (td != null) {
+      return td;
+    }
+
+    synchronized (this) {
+      td = parsed.get(url);
+      if (td == null) {
+        td = TDGraphReader.readFromString(TDFormat.RDF_TURTLE, fetch(url));
+        parsed.put(url, td);
+      }
+      return td;
+    }
+  }
+
+  /**
+   * Forgets the parsed Thing Description of a URL, so that the next {@link #get}
+   * revalidates the stored document
+   *
+   * @param url the location of the Thing Description
+   */
+  public void invalidate(String url) {
+    parsed.remove(url);
+  }
+
+  /**
+   * Returns the Turtle document of a URL, revalidating the stored copy if there is one
+   */
+  private String fetch(String url) throws IOException {
+    Path indexFile = directory.resolve(sha256(url.getBytes(StandardCharsets.UTF_8)) + ".properties");
+    Properties index = readIndex(indexFile);
+    String storedContent = readContent(index);
+    if (storedContent == null) {
+      // without a stored document, the validators must not be sent
+      index.clear();
+    }
+
+    try {
+      String content = download(url, index);
+      if (content == null) {
+        LOGGER.info("The cached Thing Description of " + url + " is up to date");
+        return storedContent;
+      }
+      store(indexFile, index, url, content);
+      return content;
+    } catch (IOException e) {
+      if (storedContent == null) {
+        throw e;
+      }
+      LOGGER.warning("Using the cached Thing Description of " + url + " since it cannot be fetched: " + e.getMessage());
+      return storedContent;
+    }
+  }
+
+  /**
+   * Downloads a document, and updates the validators of the index
+   *
+   * @return the document, or null if the stored document is still valid
+   */
+  private String download(String url, Properties index) throws IOException {
+    if (!url.startsWith("http://") && !url.startsWith("https://")) {
+      try (InputStream in = new URL(url).openStream()) {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      }
+    }
+
+    RequestConfig config = RequestConfig.custom()
+      .setConnectTimeout(Timeout.ofSeconds(TIMEOUT_SECONDS))
+      .setResponseTimeout(Timeout.ofSeconds(TIMEOUT_SECONDS))
+      .build();
+
+    HttpGet request = new HttpGet(url);
+    request.setConfig(config);
+    if (index.getProperty(ETAG_KEY) != null) {
+      request.setHeader("If-None-Match", index.getProperty(ETAG_KEY));
+    }
+    if (index.getProperty(LAST_MODIFIED_KEY) != null) {
+      request.setHeader("If-Modified-Since", index.getProperty(LAST_MODIFIED_KEY));
+    }
+
+    try (CloseableHttpClient client = HttpClients.createDefault();
+         CloseableHttpResponse response = client.execute(request)) {
+
+      if (response.getCode() == HttpStatus.SC_NOT_MODIFIED) {
+        return null;
+      }
+      if (response.getCode() != HttpStatus.SC_OK) {
+        throw new IOException("Fetching " + url + " failed with status " + response.getCode());
+      }
+
+      setValidator(index, ETAG_KEY, response.getFirstHeader("ETag"));
+      setValidator(index, LAST_MODIFIED_KEY, response.getFirstHeader("Last-Modified"));
+      return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+    } catch (ParseException e) {
+      throw new IOException("Reading " + url + " failed: " + e.getMessage(), e);
+    }
+  }
+
+  private static void setValidator(Properties index, String key, Header header) {
+    if (header != null) {
+      index.setProperty(key, header.getValue());
+    } else {
+      index.remove(key);
+    }
+  }
+
+  /**
+   * Stores a document by the hash of its content, and points the index of its URL to it
+   */
+  private void store(Path indexFile, Properties index, String url, String content) {
+    try {
+      Files.createDirectories(directory);
+
+      byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+      String hash = sha256(bytes);
+      Path contentFile = directory.resolve(hash + ".ttl");
+      if (!Files.exists(contentFile)) {
+        writeAtomically(contentFile, bytes);
+      }
+
+      index.setProperty(URL_KEY, url);
+      index.setProperty(CONTENT_KEY, hash);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      index.store(out, "Thing Description cache entry");
+      writeAtomically(indexFile, out.toByteArray());
+    } catch (IOException e) {
+      LOGGER.warning("Failed to cache the Thing Description of " + url + ": " + e.getMessage());
+    }
+  }
+
+  private Properties readIndex(Path indexFile) {
+    Properties index = new Properties();
+    if (Files.exists(indexFile)) {
+      try (InputStream in = Files.newInputStream(indexFile)) {
+        index.load(in);
+      } catch (IOException e) {
+        LOGGER.warning("Ignoring the unreadable cache entry " + indexFile + ": " + e.getMessage());
+        return new Properties();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Reads the stored document of an index entry, verifying its content against its hash
+   *
+   * @return the document, or null if there is no valid stored document
+   */
+  private String readContent(Properties index) {
+    String hash = index.getProperty(CONTENT_KEY);
+    if (hash == null) {
+      return null;
+    }
+
+    try {
+      byte[] bytes = Files.readAllBytes(directory.resolve(hash + ".ttl"));
+      if (!hash.equals(sha256(bytes))) {
+        LOGGER.warning("Ignoring the corrupted cached document " + hash);
+        return null;
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static void writeAtomically(Path file, byte[] bytes) throws IOException {
+    Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    Files.write(temporary, bytes);
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String sha256(byte[] bytes) {
+    try {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,437 @@
+package tools;
+
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * A Q-learning training loop that runs on primitive state codes.
+ *
+ * <p>
+ * The engine works on the {@code int} codes of a {@link StateCodec}, the
+ * applicable action masks of a {@link LearningEnvironment}, a {@link QTable}, a goal
+ * description that is parsed once into the desired light levels of both zones,
+ * and one {@link SplittableRandom} per engine. The reward and the goal test are
+ * computed from the state codes alone, so that a step does not need an
+ * {@link Observation}. Once warmed up, a step of the engine on a
+ * {@link SimulatedLab} allocates no memory.
+ * </p>
+ * <p>
+ * If a {@link ReplayBuffer} is set, each step adds its transition to the
+ * buffer and then replays a mini-batch of buffered transitions, so that every
+ * interaction with the environment is used for several updates. If a
+ * {@link TransitionModel} is set, each step is also recorded in the model and
+ * followed by simulated planning updates of transitions sampled from the model
+ * (Dyna-Q), whose number can be capped by a time budget per step.
+ * </p>
+ * <p>
+ * The reward of a transition only depends on the goal through the goal bonus,
+ * so a transition observed while pursuing one goal can be relabelled for any
+ * other goal. If the Q matrices of several goals are set with
+ * {@link #setRelabelling}, each step updates the matrices of all of them, and
+ * {@link #train} pursues the goals in turn, one per episode.
+ * </p>
+ * <p>
+ * An engine is not thread-safe. Concurrent trainers (e.g. one per goal) use one
+ * engine, environment and random number generator each.
+ * </p>
+ */
+public final class TrainingEngine {
+
+  private static final Logger LOGGER = Logger.getLogger(TrainingEngine.class.getName());
+
+  /**
+   * The maximum number of steps of an episode
+   */
+  public static final int MAX_EPISODE_STEPS = 10000;
+
+  /**
+   * The maximum number of random actions taken to move away from the goal
+   * before an episode
+   */
+  public static final int MAX_RANDOMIZATION_STEPS = 10000;
+
+  private final LearningEnvironment env;
+  private final StateCodec codec;
+  private final SplittableRandom random;
+  private final LearningMetrics metrics;
+
+  private QTable qTable;
+  private int goalZ1;
+  private int goalZ2;
+  private double alpha;
+  private double gamma;
+  private double epsilon;
+  private double goalReward;
+
+  private ReplayBuffer replayBuffer;
+  private int replayBatchSize;
+  private TransitionModel model;
+  private int planningSteps;
+  private long planningBudgetNanos;
+  private QTable[] goalTables;
+  private int[][] goals;
+  private TransitionLog.Writer transitionLog;
+
+  private int state;
+  private int episodeSteps;
+  private double qChangeSum;
+
+  /**
+   * Constructs an engine
+   *
+   * @param env the learning environment
+   * @param random the random number generator used for exploration and randomization
+   * @param metrics the metrics the steps and episodes are recorded to
+   */
+  public TrainingEngine(LearningEnvironment env, SplittableRandom random, LearningMetrics metrics) {
+    this.env = env;
+    this.codec = env.getStateCodec();
+    this.random = random;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Parses a goal description into the desired light levels of both zones
+   *
+   * @param goalDescription the goal description, e.g. [2,3]
+   * @return the light levels, e.g. {2, 3}
+   */
+  public static int[] parseGoal(Object[] goalDescription) {
+    if (goalDescription.length < 2) {
+      throw new IllegalArgumentException("Expected a goal description [z1Level, z2Level] but got "
+        + Arrays.toString(goalDescription));
+    }
+    return new int[] {
+      Integer.parseInt(goalDescription[0].toString()),
+      Integer.parseInt(goalDescription[1].toString())
+    };
+  }
+
+  /**
+   * Sets the Q matrix to update and the parameters of the training
+   *
+   * @param qTable the Q matrix
+   * @param goal the desired light levels of both zones, e.g. {2, 3}
+   * @param alpha the learning rate
+   * @param gamma the discount factor
+   * @param epsilon the exploration probability
+   * @param goalReward the reward assigned when reaching the goal state
+   */
+  public void configure(QTable qTable, int[] goal, double alpha, double gamma, double epsilon,
+    double goalReward) {
+    this.qTable = qTable;
+    this.goalZ1 = goal[0];
+    this.goalZ2 = goal[1];
+    this.alpha = alpha;
+    this.gamma = gamma;
+    this.epsilon = epsilon;
+    this.goalReward = goalReward;
+  }
+
+  /**
+   * Sets the buffer the transitions of the steps are added to and replayed from
+   *
+   * @param replayBuffer the buffer of the goal the engine is configured for, or null to not buffer transitions
+   * @param replayBatchSize the number of buffered transitions replayed after each step, or 0 to only fill the buffer
+   */
+  public void setReplay(ReplayBuffer replayBuffer, int replayBatchSize) {
+    this.replayBuffer = replayBuffer;
+    this.replayBatchSize = replayBatchSize;
+  }
+
+  /**
+   * Sets the model the transitions of the steps are recorded in and planned with
+   *
+   * @param model the model of the environment, or null to not record transitions
+   * @param planningSteps the number of simulated updates after each step, or 0 to only record transitions
+   * @param planningBudgetNanos the maximum time of the simulated updates after a step, or 0 for no limit
+   */
+  public void setPlanning(TransitionModel model, int planningSteps, long planningBudgetNanos) {
+    this.model = model;
+    this.planningSteps = planningSteps;
+    this.planningBudgetNanos = planningBudgetNanos;
+  }
+
+  /**
+   * Sets the Q matrices of the goals each transition is relabelled for. The
+   * replay buffer is not used while relabelling, as its rewards are the ones
+   * of a single goal.
+   *
+   * @param goalTables the Q matrices of the goals, or null to only update the configured Q matrix
+   * @param goals the desired light levels of both zones of each goal, e.g. {{0, 0}, {0, 1}, ...}
+   */
+  public void setRelabelling(QTable[] goalTables, int[][] goals) {
+    if (goalTables != null && goalTables.length != goals.length) {
+      throw new IllegalArgumentException("Expected " + goalTables.length + " goals but got " + goals.length);
+    }
+    this.goalTables = goalTables;
+    this.goals = goals;
+  }
+
+  /**
+   * Sets the log the transitions of the steps are appended to
+   *
+   * @param transitionLog the log, or null to not log the transitions
+   */
+  public void setTransitionLog(TransitionLog.Writer transitionLog) {
+    this.transitionLog = transitionLog;
+  }
+
+  /**
+   * Runs episodes, each starting from a state that is not a goal state and
+   * ending when the goal is reached or after {@link #MAX_EPISODE_STEPS} steps.
+   * While relabelling, the episodes pursue the goals in turn.
+   *
+   * @param episodes the number of episodes
+   * @return the updated Q matrix, i.e. the one of the last goal pursued while relabelling
+   */
+  public QTable train(int episodes) {
+    for (int episode = 1; episode <= episodes; episode++) {
+      if (goalTables != null) {
+        int goal = (episode - 1) % goalTables.length;
+        qTable = goalTables[goal];
+        goalZ1 = goals[goal][0];
+        goalZ2 = goals[goal][1];
+      }
+      beginEpisode();
+
+      boolean reached = false;
+      while (!reached && episodeSteps < MAX_EPISODE_STEPS && env.getApplicableActionMask(state) != 0) {
+        reached = step();
+      }
+      endEpisode(reached);
+
+      if (episodes <= 10 || episode % 100 == 0) {
+        LOGGER.info("Completed episode " + episode + " of " + episodes);
+      }
+    }
+    return qTable;
+  }
+
+  /**
+   * Starts an episode by moving the environment away from the goal
+   *
+   * @return the state the episode starts from
+   */
+  public int beginEpisode() {
+    state = env.readCurrentState();
+    for (int i = 0; i < MAX_RANDOMIZATION_STEPS && isGoalState(state); i++) {
+      long actions = env.getApplicableActionMask(state);
+      if (actions == 0) {
+        break;
+      }
+      env.performAction(QTable.actionAt(actions, random.nextInt(Long.bitCount(actions))));
+      state = env.awaitSettled();
+    }
+    if (isGoalState(state)) {
+      LOGGER.warning("Could not move away from the goal state [" + goalZ1 + "," + goalZ2 + "]");
+    }
+
+    episodeSteps = 0;
+    qChangeSum = 0;
+    return state;
+  }
+
+  /**
+   * Performs one step: chooses an action, performs it, and updates the Q value
+   * of the transition
+   *
+   * @return true if the step reached the goal
+   */
+  public boolean step() {
+    long applicableActions = env.getApplicableActionMask(state);
+    if (applicableActions == 0) {
+      return false;
+    }
+
+    int action = chooseAction(applicableActions);
+    env.performAction(action);
+    int nextState = env.awaitSettled();
+
+    double reward = reward(codec, state, nextState, goalZ1, goalZ2, goalReward);
+    if (transitionLog != null) {
+      env.logTransition(transitionLog, env.getTrainingSource(), state, action, reward);
+    }
+    double maxQNext = qTable.rowMax(nextState, env.getApplicableActionMask(nextState));
+
+    double qChange = alpha * (reward + gamma * maxQNext - qTable.get(state, action));
+    qTable.add(state, action, qChange);
+    qChangeSum += Math.abs(qChange);
+    episodeSteps++;
+    metrics.recordStep();
+
+    boolean reached = isGoalState(nextState);
+    double baseReward = reached ? reward - goalReward : reward;
+    if (goalTables != null) {
+      relabel(action, nextState, baseReward);
+    } else if (replayBuffer != null) {
+      replayBuffer.add(state, action, baseReward, nextState, reached);
+      if (replayBatchSize > 0) {
+        replayBuffer.replay(qTable, env, replayBatchSize, alpha, gamma, goalReward, random);
+        metrics.recordReplayUpdates(replayBatchSize);
+      }
+    }
+    if (model != null) {
+      model.observe(state, action, nextState);
+      if (planningSteps > 0) {
+        metrics.recordPlanningUpdates(plan());
+      }
+    }
+
+    state = nextState;
+    return reached;
+  }
+
+  /**
+   * Ends an episode and records its metrics
+   *
+   * @param reached whether the goal was reached
+   */
+  public void endEpisode(boolean reached) {
+    if (reached) {
+      metrics.recordGoalReached(episodeSteps);
+    }
+    metrics.recordEpisode(episodeSteps == 0 ? 0.0 : qChangeSum / episodeSteps);
+  }
+
+  /**
+   * Returns the current state of the episode
+   *
+   * @return the state code
+   */
+  public int getState() {
+    return state;
+  }
+
+  /**
+   * Returns whether a state is a goal state, i.e. whether its light levels are the desired ones
+   *
+   * @param state the state code
+   * @return true if the state is a goal state
+   */
+  public boolean isGoalState(int state) {
+    return codec.axisValue(state, 0) == goalZ1 && codec.axisValue(state, 1) == goalZ2;
+  }
+
+  /**
+   * Applies the Q-learning update of a transition to the Q matrices of the
+   * goals other than the pursued one
+   *
+   * @param action the action of the transition
+   * @param nextState the state after the transition
+   * @param baseReward the reward of the transition without the goal bonus
+   */
+  private void relabel(int action, int nextState, double baseReward) {
+    long nextActions = env.getApplicableActionMask(nextState);
+    int z1Level = codec.axisValue(nextState, 0);
+    int z2Level = codec.axisValue(nextState, 1);
+    for (int goal = 0; goal < goalTables.length; goal++) {
+      QTable table = goalTables[goal];
+      if (table == qTable) {
+        continue;
+      }
+      double reward = goals[goal][0] == z1Level && goals[goal][1] == z2Level ? baseReward + goalReward : baseReward;
+      table.add(state, action,
+        alpha * (reward + gamma * table.rowMax(nextState, nextActions) - table.get(state, action)));
+    }
+  }
+
+  /**
+   * Applies the Q-learning update to transitions simulated by the model, for
+   * state and action pairs that have been observed before
+   *
+   * @return the number of updates, which is less than the planning steps if the budget ran out
+   */
+  private int plan() {
+    long start = planningBudgetNanos > 0 ? System.nanoTime() : 0;
+    int pairs = model.getObservedPairCount();
+    int updates = 0;
+    while (updates < planningSteps) {
+      // reading the clock costs about as much as an update, so it is only read every 8 updates
+      if (planningBudgetNanos > 0 && (updates & 7) == 0 && System.nanoTime() - start >= planningBudgetNanos) {
+        break;
+      }
+      int pair = model.getObservedPair(random.nextInt(pairs));
+      int simulatedState = pair / model.getActionCount();
+      int simulatedAction = pair % model.getActionCount();
+      int simulatedNextState = model.sampleNextState(simulatedState, simulatedAction, random);
+
+      double reward = reward(codec, simulatedState, simulatedNextState, goalZ1, goalZ2, goalReward);
+      double maxQNext = qTable.rowMax(simulatedNextState, env.getApplicableActionMask(simulatedNextState));
+      qTable.add(simulatedState, simulatedAction,
+        alpha * (reward + gamma * maxQNext - qTable.get(simulatedState, simulatedAction)));
+      updates++;
+    }
+    return updates;
+  }
+
+  private int chooseAction(long applicableActions) {
+    // With probability epsilon, choose a random action (exploration)
+    if (random.nextDouble() < epsilon) {
+      return QTable.actionAt(applicableActions, random.nextInt(Long.bitCount(applicableActions)));
+    }
+    // Otherwise, choose the action with the highest Q-value (exploitation)
+    return qTable.rowArgMax(state, applicableActions);
+  }
+
+  /**
+   * Calculates the reward for transitioning between two lab states
+   *
+   * @param codec the codec of the states
+   * @param previousState the state before the transition
+   * @param state the state after the transition
+   * @param goalZ1 the desired light level of Zone 1
+   * @param goalZ2 the desired light level of Zone 2
+   * @param goalReward the reward added when the goal state is reached
+   * @return the reward
+   */
+  public static double reward(StateCodec codec, int previousState, int state, int goalZ1, int goalZ2,
+    double goalReward) {
+    int z1Level = codec.axisValue(state, 0);
+    int z2Level = codec.axisValue(state, 1);
+    boolean z1Light = codec.axisValue(state, 2) == 1;
+    boolean z2Light = codec.axisValue(state, 3) == 1;
+    boolean z1Blinds = codec.axisValue(state, 4) == 1;
+    boolean z2Blinds = codec.axisValue(state, 5) == 1;
+    int sunshine = codec.axisValue(state, 6);
+
+    double reward = -1.0; // Base step cost
+
+    // Add large reward if goal state is reached
+    if (z1Level == goalZ1 && z2Level == goalZ2) {
+      reward += goalReward;
+    }
+
+    // Apply energy consumption penalty for lights (50 units each)
+    if (z1Light) {
+      reward -= 5.0;
+    }
+    if (z2Light) {
+      reward -= 5.0;
+    }
+
+    // Apply energy cost for blinds (1 unit each)
+    if (z1Blinds) {
+      reward -= 0.1;
+    }
+    if (z2Blinds) {
+      reward -= 0.1;
+    }
+
+    // Apply penalty for rapid changes in light levels
+    reward -= 0.1 * Math.abs(z1Level - codec.axisValue(previousState, 0))
+      + 0.1 * Math.abs(z2Level - codec.axisValue(previousState, 1));
+
+    // Penalize artificial light when natural light is available
+    if (sunshine >= 2) {
+      if (z1Blinds && z1Light) {
+        reward -= 1.0;
+      }
+      if (z2Blinds && z2Light) {
+        reward -= 1.0;
+      }
+    }
+
+    return reward;
+  }
+}
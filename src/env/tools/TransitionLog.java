@@ -0,0 +1,438 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.logging.*;
+
+/**
+ * An append-only binary log of the transitions of learning environments, i.e.
+ * of the actions performed in the simulator and in the lab and of the states
+ * read after them, for offline training and debugging.
+ *
+ * <p>
+ * A log file starts with a header of {@link #HEADER_BYTES} bytes: the magic
+ * number {@link #MAGIC}, the format version, the version of the
+ * {@link StateCodec} of the state codes and the size of a record (4 ints,
+ * padded with zeros). The header is followed by records of
+ * {@link #RECORD_BYTES} bytes each, all big-endian, which hold in this order:
+ * </p>
+ * <ul>
+ * <li> the time of the read of the next state in milliseconds (long)
+ * <li> the state before the action, the action and the state read after it (3 ints)
+ * <li> the illuminance of Zone 1, of Zone 2 and of the sunshine in lux, read with the next state (3 floats)
+ * <li> the reward of the transition, or NaN if it is not known (float)
+ * <li> the energy cost reported with the next state, or NaN (float)
+ * <li> the source of the transition, e.g. {@link #SOURCE_SIMULATION} (int)
+ * <li> 4 reserved bytes, written as zeros (int)
+ * </ul>
+ * <p>
+ * The source tells which dynamics the transition belongs to and which clock its
+ * timestamp was read from: the simulated clock of a {@link SimulatedLab}, or the
+ * wall clock for the training on a {@link Lab} and for the control of a lab by
+ * the artifacts. Records written before the source was recorded have the source
+ * {@link #SOURCE_UNKNOWN}.
+ * </p>
+ * <p>
+ * Since the records have a fixed width, a record that was only partly written
+ * when the process stopped is ignored by the {@link Reader}. The
+ * {@link Writer} buffers the records in a direct buffer and appends them to a
+ * {@link FileChannel}, without allocating memory per record. The
+ * {@link Reader} maps the file into memory, in regions of up to 1 GiB, so that
+ * logs larger than 2 GiB can be streamed as well.
+ * </p>
+ */
+public final class TransitionLog {
+
+  private static final Logger LOGGER = Logger.getLogger(TransitionLog.class.getName());
+
+  /**
+   * The magic number of a transition log file ("QTRL")
+   */
+  public static final int MAGIC = 0x5154524C;
+
+  /**
+   * The version of the file format
+   */
+  public static final int FORMAT_VERSION = 1;
+
+  /**
+   * The size of the header of a transition log file
+   */
+  public static final int HEADER_BYTES = 32;
+
+  /**
+   * The size of a record of a transition log file
+   */
+  public static final int RECORD_BYTES = 48;
+
+  /**
+   * The source of records whose source is not known
+   */
+  public static final int SOURCE_UNKNOWN = 0;
+
+  /**
+   * The source of the training steps on a {@link SimulatedLab}, whose timestamps are simulated milliseconds
+   */
+  public static final int SOURCE_SIMULATION = 1;
+
+  /**
+   * The source of the training steps on a {@link Lab}, whose timestamps are wall-clock milliseconds
+   */
+  public static final int SOURCE_LAB = 2;
+
+  /**
+   * The source of the control of a lab by the artifacts, whose timestamps are wall-clock milliseconds
+   */
+  public static final int SOURCE_CONTROL = 3;
+
+  private static final String[] SOURCE_NAMES = {"unknown", "simulation", "lab", "control"};
+
+  /**
+   * The system property with the path of the log that the artifacts append the
+   * transitions of the simulator and of the lab to
+   */
+  public static final String PATH_PROPERTY = "transition.log";
+
+  private static final int BUFFERED_RECORDS = 1024;
+  private static final int RECORDS_PER_REGION = (1 << 30) / RECORD_BYTES;
+
+  private static Writer defaultWriter;
+  private static boolean defaultWriterOpened;
+
+  private TransitionLog() {
+  }
+
+  /**
+   * Returns the writer shared by all the artifacts of the JVM, opening it on the
+   * first call if the {@link #PATH_PROPERTY} system property is set
+   *
+   * @return the default writer, or null if no log is configured or it cannot be opened
+   */
+  public static synchronized Writer getDefaultWriter() {
+    if (!defaultWriterOpened) {
+      defaultWriterOpened = true;
+      String path = System.getProperty(PATH_PROPERTY);
+      if (path != null) {
+        try {
+          defaultWriter = new Writer(Paths.get(path), StateCodec.LAB.getVersion());
+          Runtime.getRuntime().addShutdownHook(new Thread(defaultWriter::close));
+          LOGGER.info("Logging the transitions to " + path);
+        } catch (IOException e) {
+          LOGGER.severe("Failed to open the transition log " + path + ": " + e.getMessage());
+        }
+      }
+    }
+    return defaultWriter;
+  }
+
+  /**
+   * Returns the source of a name, e.g. "simulation" for {@link #SOURCE_SIMULATION}
+   *
+   * @param name the name of the source, in any case, or the number of the source
+   * @return the source
+   * @throws IllegalArgumentException if there is no such source
+   */
+  public static int parseSource(String name) {
+    for (int source = 0; source < SOURCE_NAMES.length; source++) {
+      if (SOURCE_NAMES[source].equalsIgnoreCase(name) || String.valueOf(source).equals(name)) {
+        return source;
+      }
+    }
+    throw new IllegalArgumentException("Unknown transition source " + name);
+  }
+
+  /**
+   * Returns the name of a source
+   *
+   * @param source the source
+   * @return the name, e.g. "simulation"
+   */
+  public static String getSourceName(int source) {
+    return source >= 0 && source < SOURCE_NAMES.length ? SOURCE_NAMES[source] : String.valueOf(source);
+  }
+
+  private static void checkHeader(Path file, ByteBuffer header, int codecVersion) throws IOException {
+    if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION || header.getInt(12) != RECORD_BYTES) {
+      throw new IOException("Not a transition log file of version " + FORMAT_VERSION + ": " + file);
+    }
+    if (codecVersion != 0 && header.getInt(8) != codecVersion) {
+      throw new IOException("The transition log " + file + " uses a different state codec");
+    }
+  }
+
+  /**
+   * A writer that appends records to a log file, creating the file if it does
+   * not exist. The appends of a writer are synchronized, so concurrent trainers
+   * can share a writer.
+   */
+  public static final class Writer implements AutoCloseable {
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFERED_RECORDS * RECORD_BYTES);
+    private long recordCount;
+    private long droppedRecords;
+
+    /**
+     * Opens a log file for appending
+     *
+     * @param file the file
+     * @param codecVersion the version of the state codec of the state codes
+     * @throws IOException if the file cannot be opened or is a log with another format or state codec
+     */
+    public Writer(Path file, int codecVersion) throws IOException {
+      this.file = file;
+      if (file.getParent() != null) {
+        Files.createDirectories(file.getParent());
+      }
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+
+      try {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if (channel.size() == 0) {
+          header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(codecVersion).putInt(RECORD_BYTES).rewind();
+          while (header.hasRemaining()) {
+            channel.write(header);
+          }
+        } else {
+          while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // read the whole header
+          }
+          checkHeader(file, header, codecVersion);
+        }
+
+        // drop a partly written record, so that the new records stay aligned
+        long records = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+        channel.truncate(HEADER_BYTES + records * RECORD_BYTES);
+        channel.position(HEADER_BYTES + records * RECORD_BYTES);
+        this.recordCount = records;
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Appends a transition. The record is written to the file when the buffer is
+     * full or the writer is flushed.
+     *
+     * @param timestamp the time of the read of the next state in milliseconds
+     * @param state the state before the action
+     * @param action the action
+     * @param nextState the state read after the action
+     * @param z1Lux the illuminance of Zone 1 in lux
+     * @param z2Lux the illuminance of Zone 2 in lux
+     * @param sunshineLux the illuminance of the sunshine in lux
+     * @param reward the reward of the transition, or NaN
+     * @param energyCost the energy cost reported with the next state, or NaN
+     * @param source the source of the transition, e.g. {@link #SOURCE_SIMULATION}
+     */
+    public synchronized void append(long timestamp, int state, int action, int nextState, double z1Lux,
+      double z2Lux, double sunshineLux, double reward, double energyCost, int source) {
+      if (buffer.remaining() < RECORD_BYTES) {
+        flush();
+      }
+      buffer.putLong(timestamp);
+      buffer.putInt(state);
+      buffer.putInt(action);
+      buffer.putInt(nextState);
+      buffer.putFloat((float) z1Lux);
+      buffer.putFloat((float) z2Lux);
+      buffer.putFloat((float) sunshineLux);
+      buffer.putFloat((float) reward);
+      buffer.putFloat((float) energyCost);
+      buffer.putInt(source);
+      buffer.putInt(0);
+    }
+
+    /**
+     * Writes the buffered records to the file. Records that cannot be written
+     * are dropped and counted, so that a failing log does not stop the training.
+     */
+    public synchronized void flush() {
+      buffer.flip();
+      int records = buffer.remaining() / RECORD_BYTES;
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        recordCount += records;
+      } catch (IOException e) {
+        droppedRecords += records;
+        LOGGER.severe("Failed to append " + records + " records to the transition log " + file + ": "
+          + e.getMessage());
+      }
+      buffer.clear();
+    }
+
+    /**
+     * Returns the number of records in the file, including the buffered ones
+     *
+     * @return the number of records
+     */
+    public synchronized long getRecordCount() {
+      return recordCount + buffer.position() / RECORD_BYTES;
+    }
+
+    /**
+     * Returns the number of records that could not be written
+     *
+     * @return the number of dropped records
+     */
+    public synchronized long getDroppedRecords() {
+      return droppedRecords;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    /**
+     * Flushes the buffered records and closes the file
+     */
+    @Override
+    public synchronized void close() {
+      if (!channel.isOpen()) {
+        return;
+      }
+      flush();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOGGER.severe("Failed to close the transition log " + file + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * A reader that streams the records of a log file through a memory-mapped
+   * cursor: {@link #next()} moves to the next record, whose fields are then
+   * returned by the getters. Reading allocates no memory per record.
+   */
+  public static final class Reader {
+
+    private final Path file;
+    private final MappedByteBuffer[] regions;
+    private final int codecVersion;
+    private final long recordCount;
+
+    private MappedByteBuffer region;
+    private int offset;
+    private long index = -1;
+
+    /**
+     * Maps a log file into memory. The records that are appended after the file
+     * has been mapped are not read.
+     *
+     * @param file the file
+     * @throws IOException if the file cannot be read or is not a transition log file
+     */
+    public Reader(Path file) throws IOException {
+      this.file = file;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        if (channel.size() < HEADER_BYTES) {
+          throw new IOException("Not a transition log file: " + file);
+        }
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        checkHeader(file, header, 0);
+        this.codecVersion = header.getInt(8);
+
+        // the mappings stay valid after the channel is closed
+        this.recordCount = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+        this.regions = new MappedByteBuffer[(int) ((recordCount + RECORDS_PER_REGION - 1) / RECORDS_PER_REGION)];
+        for (int i = 0; i < regions.length; i++) {
+          long first = (long) i * RECORDS_PER_REGION;
+          long records = Math.min(RECORDS_PER_REGION, recordCount - first);
+          regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * RECORD_BYTES,
+            records * RECORD_BYTES);
+        }
+      }
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    /**
+     * Returns the version of the state codec of the state codes of the log
+     *
+     * @return the codec version
+     */
+    public int getCodecVersion() {
+      return codecVersion;
+    }
+
+    public long getRecordCount() {
+      return recordCount;
+    }
+
+    /**
+     * Moves the cursor to the next record
+     *
+     * @return true if there is a next record
+     */
+    public boolean next() {
+      if (index + 1 >= recordCount) {
+        return false;
+      }
+      index++;
+      int position = (int) (index % RECORDS_PER_REGION);
+      if (position == 0) {
+        region = regions[(int) (index / RECORDS_PER_REGION)];
+      }
+      offset = position * RECORD_BYTES;
+      return true;
+    }
+
+    /**
+     * Moves the cursor before the first record
+     */
+    public void rewind() {
+      index = -1;
+    }
+
+    public long getTimestamp() {
+      return region.getLong(offset);
+    }
+
+    public int getState() {
+      return region.getInt(offset + 8);
+    }
+
+    public int getAction() {
+      return region.getInt(offset + 12);
+    }
+
+    public int getNextState() {
+      return region.getInt(offset + 16);
+    }
+
+    public float getZ1Lux() {
+      return region.getFloat(offset + 20);
+    }
+
+    public float getZ2Lux() {
+      return region.getFloat(offset + 24);
+    }
+
+    public float getSunshineLux() {
+      return region.getFloat(offset + 28);
+    }
+
+    public float getReward() {
+      return region.getFloat(offset + 32);
+    }
+
+    public float getEnergyCost() {
+      return region.getFloat(offset + 36);
+    }
+
+    public int getSource() {
+      return region.getInt(offset + 40);
+    }
+  }
+}
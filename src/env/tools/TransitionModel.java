@@ -0,0 +1,219 @@
+package tools;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A tabular model of the transitions of a learning environment, learnt from
+ * the observed {@code (state, action) -> nextState} transitions.
+ *
+ * <p>
+ * For each pair of a state and an action, the model counts how often each
+ * successor state has been observed, so that it reproduces the stochastic
+ * effects of the environment (e.g. changes of the sunshine) in proportion to
+ * their frequency. The rewards are not stored: the reward of a transition is a
+ * function of the state codes and of the goal (see
+ * {@link TrainingEngine#reward}), so one model serves the planning for all
+ * goals. The observed pairs are kept in the order in which they were first
+ * observed, so that planning can sample them uniformly.
+ * </p>
+ * <p>
+ * Only the first observation of a pair or of a successor allocates memory.
+ * A model is not thread-safe; concurrent trainers use one model each and
+ * {@link #merge} them afterwards.
+ * </p>
+ */
+public final class TransitionModel {
+
+  private static final int INITIAL_SUCCESSORS = 2;
+
+  private final int stateCount;
+  private final int actionCount;
+
+  private final int[][] successors;
+  private final int[][] counts;
+  private final int[] successorCounts;
+  private final int[] totals;
+  private final int[] observedPairs;
+  private int observedPairCount;
+  private long transitionCount;
+
+  /**
+   * Constructs an empty model
+   *
+   * @param stateCount the number of states
+   * @param actionCount the number of actions
+   */
+  public TransitionModel(int stateCount, int actionCount) {
+    this.stateCount = stateCount;
+    this.actionCount = actionCount;
+    this.successors = new int[stateCount * actionCount][];
+    this.counts = new int[stateCount * actionCount][];
+    this.successorCounts = new int[stateCount * actionCount];
+    this.totals = new int[stateCount * actionCount];
+    this.observedPairs = new int[stateCount * actionCount];
+  }
+
+  public int getStateCount() {
+    return stateCount;
+  }
+
+  public int getActionCount() {
+    return actionCount;
+  }
+
+  /**
+   * Records an observed transition
+   *
+   * @param state the state before the transition
+   * @param action the action performed in the state
+   * @param nextState the state after the transition
+   */
+  public void observe(int state, int action, int nextState) {
+    observe(state, action, nextState, 1);
+  }
+
+  private void observe(int state, int action, int nextState, int count) {
+    int pair = state * actionCount + action;
+    int[] next = successors[pair];
+    if (next == null) {
+      next = successors[pair] = new int[INITIAL_SUCCESSORS];
+      counts[pair] = new int[INITIAL_SUCCESSORS];
+      observedPairs[observedPairCount++] = pair;
+    }
+
+    int n = successorCounts[pair];
+    int i = 0;
+    while (i < n && next[i] != nextState) {
+      i++;
+    }
+    if (i == n) {
+      if (n == next.length) {
+        successors[pair] = next = Arrays.copyOf(next, n * 2);
+        counts[pair] = Arrays.copyOf(counts[pair], n * 2);
+      }
+      next[n] = nextState;
+      successorCounts[pair] = n + 1;
+    }
+    counts[pair][i] += count;
+    totals[pair] += count;
+    transitionCount += count;
+  }
+
+  /**
+   * Adds the transitions observed by another model of the same environment
+   *
+   * @param other the other model
+   */
+  public void merge(TransitionModel other) {
+    if (other.stateCount != stateCount || other.actionCount != actionCount) {
+      throw new IllegalArgumentException("Cannot merge a model of " + other.stateCount + "x" + other.actionCount
+        + " into a model of " + stateCount + "x" + actionCount);
+    }
+    for (int p = 0; p < other.observedPairCount; p++) {
+      int pair = other.observedPairs[p];
+      for (int i = 0; i < other.successorCounts[pair]; i++) {
+        observe(pair / actionCount, pair % actionCount, other.successors[pair][i], other.counts[pair][i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of pairs of a state and an action that have been observed
+   *
+   * @return the number of observed pairs
+   */
+  public int getObservedPairCount() {
+    return observedPairCount;
+  }
+
+  /**
+   * Returns an observed pair of a state and an action, as {@code state * actionCount + action}
+   *
+   * @param index the index of the pair, in the range [0, getObservedPairCount()), in the order of
+   * the first observations
+   * @return the pair
+   */
+  public int getObservedPair(int index) {
+    return observedPairs[index];
+  }
+
+  /**
+   * Returns the number of transitions observed since the model was constructed
+   *
+   * @return the number of transitions
+   */
+  public long getTransitionCount() {
+    return transitionCount;
+  }
+
+  /**
+   * Returns the number of times an action has been observed in a state
+   *
+   * @param state the state
+   * @param action the action
+   * @return the number of observed transitions
+   */
+  public int getTotal(int state, int action) {
+    return totals[state * actionCount + action];
+  }
+
+  /**
+   * Returns the number of distinct successors observed for an action in a state
+   *
+   * @param state the state
+   * @param action the action
+   * @return the number of successors
+   */
+  public int getSuccessorCount(int state, int action) {
+    return successorCounts[state * actionCount + action];
+  }
+
+  /**
+   * Returns a successor observed for an action in a state
+   *
+   * @param state the state
+   * @param action the action
+   * @param index the index of the successor, in the range [0, getSuccessorCount(state, action))
+   * @return the successor state
+   */
+  public int getSuccessor(int state, int action, int index) {
+    return successors[state * actionCount + action][index];
+  }
+
+  /**
+   * Returns how often a successor has been observed for an action in a state
+   *
+   * @param state the state
+   * @param action the action
+   * @param index the index of the successor, in the range [0, getSuccessorCount(state, action))
+   * @return the number of observations
+   */
+  public int getCount(int state, int action, int index) {
+    return counts[state * actionCount + action][index];
+  }
+
+  /**
+   * Samples a successor of an action in a state, in proportion to how often
+   * it has been observed
+   *
+   * @param state the state
+   * @param action the action
+   * @param random the random number generator
+   * @return the successor state, or -1 if the action has not been observed in the state
+   */
+  public int sampleNextState(int state, int action, SplittableRandom random) {
+    int pair = state * actionCount + action;
+    if (totals[pair] == 0) {
+      return -1;
+    }
+    int[] pairCounts = counts[pair];
+    int r = random.nextInt(totals[pair]);
+    int i = 0;
+    while (r >= pairCounts[i]) {
+      r -= pairCounts[i];
+      i++;
+    }
+    return successors[pair][i];
+  }
+}
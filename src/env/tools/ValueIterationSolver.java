@@ -0,0 +1,200 @@
+package tools;
+
+/**
+ * A solver that computes the Q matrix of a goal by value iteration over the
+ * empirical transition probabilities of a {@link TransitionModel}, without
+ * interacting with the environment.
+ *
+ * <p>
+ * The solver takes a snapshot of the model when it is constructed: the
+ * successors of the observed pairs of a state and an action and their
+ * probabilities are flattened into primitive arrays, and the applicable action
+ * masks of all states are read once. Solving then only reads the snapshot, so
+ * one solver can solve several goals concurrently, e.g. all 16 goals of the lab.
+ * </p>
+ * <p>
+ * The computed values are the fixed point of the update of a
+ * {@link TrainingEngine} step, i.e. the reward of {@link TrainingEngine#reward}
+ * plus the discounted maximum value of the applicable actions in the successor.
+ * Pairs that have never been observed get a pessimistic value instead of the
+ * value 0 of a freshly created Q matrix, which could beat the negative values
+ * of the observed actions of a sparsely observed state: the lowest discounted
+ * return of the observed rewards, {@code min(0, minReward) / (1 - gamma)},
+ * minus 1. Every observed pair is valued above it, so the greedy policy of the
+ * Q matrix only chooses an unobserved action in a state without observed
+ * actions, and such a state is valued as if its return were the lowest one.
+ * </p>
+ */
+public final class ValueIterationSolver {
+
+  private final StateCodec codec;
+  private final int stateCount;
+  private final int actionCount;
+  private final long[] applicableActions;
+  private final int[] observedPairs;
+  private final int[] successorStates;
+  private final int[] pairStart;
+  private final int[] successors;
+  private final double[] probabilities;
+
+  /**
+   * Constructs a solver over a snapshot of a model
+   *
+   * @param model the model of the transitions of the environment
+   * @param env the environment, which provides the codec and the applicable actions of the states
+   */
+  public ValueIterationSolver(TransitionModel model, LearningEnvironment env) {
+    this.codec = env.getStateCodec();
+    this.stateCount = model.getStateCount();
+    this.actionCount = model.getActionCount();
+
+    this.applicableActions = new long[stateCount];
+    for (int state = 0; state < stateCount; state++) {
+      applicableActions[state] = env.getApplicableActionMask(state);
+    }
+
+    int pairs = stateCount * actionCount;
+    this.pairStart = new int[pairs + 1];
+    int transitions = 0;
+    for (int pair = 0; pair < pairs; pair++) {
+      pairStart[pair] = transitions;
+      transitions += model.getSuccessorCount(pair / actionCount, pair % actionCount);
+    }
+    pairStart[pairs] = transitions;
+
+    this.successors = new int[transitions];
+    this.probabilities = new double[transitions];
+    this.observedPairs = new int[model.getObservedPairCount()];
+    int observed = 0;
+    boolean[] isSuccessor = new boolean[stateCount];
+    for (int pair = 0; pair < pairs; pair++) {
+      if (pairStart[pair] < pairStart[pair + 1]) {
+        observedPairs[observed++] = pair;
+      }
+      int state = pair / actionCount;
+      int action = pair % actionCount;
+      double total = model.getTotal(state, action);
+      for (int i = pairStart[pair]; i < pairStart[pair + 1]; i++) {
+        successors[i] = model.getSuccessor(state, action, i - pairStart[pair]);
+        probabilities[i] = model.getCount(state, action, i - pairStart[pair]) / total;
+        isSuccessor[successors[i]] = true;
+      }
+    }
+
+    // the iterations only visit the observed pairs and the states whose values they depend on
+    int successorCount = 0;
+    for (int state = 0; state < stateCount; state++) {
+      if (isSuccessor[state]) {
+        successorCount++;
+      }
+    }
+    this.successorStates = new int[successorCount];
+    for (int state = 0, i = 0; state < stateCount; state++) {
+      if (isSuccessor[state]) {
+        successorStates[i++] = state;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of distinct transitions of the snapshot
+   *
+   * @return the number of pairs of a state and an action times their successors
+   */
+  public int getTransitionCount() {
+    return successors.length;
+  }
+
+  /**
+   * Computes the Q matrix of a goal
+   *
+   * @param goal the desired light levels of both zones, e.g. {2, 3}
+   * @param gamma the discount factor in the range [0, 1)
+   * @param goalReward the reward added when the goal state is reached
+   * @param tolerance the largest change of a Q value in an iteration at which the values have converged
+   * @param maxIterations the maximum number of iterations
+   * @return the result, whose Q matrix is backed by a {@code double[]}
+   * @throws IllegalArgumentException if the discount factor is not in the range [0, 1), for which
+   * the iteration does not converge
+   */
+  public Result solve(int[] goal, double gamma, double goalReward, double tolerance, int maxIterations) {
+    if (!(gamma >= 0 && gamma < 1)) {
+      throw new IllegalArgumentException("The discount factor must be in [0,1) but is " + gamma);
+    }
+
+    // the rewards of the transitions of this goal
+    double[] rewards = new double[successors.length];
+    double minReward = 0;
+    for (int pair : observedPairs) {
+      for (int i = pairStart[pair]; i < pairStart[pair + 1]; i++) {
+        rewards[i] = TrainingEngine.reward(codec, pair / actionCount, successors[i], goal[0], goal[1], goalReward);
+        minReward = Math.min(minReward, rewards[i]);
+      }
+    }
+
+    // the pessimistic value of the unobserved pairs, below the value of every observed pair
+    double unobservedValue = minReward / (1 - gamma) - 1;
+    QTable qTable = QTable.create(QTable.Backing.DOUBLE, stateCount, actionCount);
+    for (int state = 0; state < stateCount; state++) {
+      for (int action = 0; action < actionCount; action++) {
+        qTable.set(state, action, unobservedValue);
+      }
+    }
+    double[] values = new double[stateCount];
+    int iterations = 0;
+    double delta = Double.POSITIVE_INFINITY;
+
+    while (iterations < maxIterations && delta > tolerance) {
+      for (int state : successorStates) {
+        values[state] = qTable.rowMax(state, applicableActions[state]);
+      }
+
+      delta = 0;
+      for (int pair : observedPairs) {
+        double q = 0;
+        for (int i = pairStart[pair]; i < pairStart[pair + 1]; i++) {
+          q += probabilities[i] * (rewards[i] + gamma * values[successors[i]]);
+        }
+        int state = pair / actionCount;
+        int action = pair % actionCount;
+        delta = Math.max(delta, Math.abs(q - qTable.get(state, action)));
+        qTable.set(state, action, q);
+      }
+      iterations++;
+    }
+    return new Result(qTable, iterations, delta);
+  }
+
+  /**
+   * The Q matrix computed for a goal, and how it converged
+   */
+  public static final class Result {
+
+    private final QTable qTable;
+    private final int iterations;
+    private final double residual;
+
+    Result(QTable qTable, int iterations, double residual) {
+      this.qTable = qTable;
+      this.iterations = iterations;
+      this.residual = residual;
+    }
+
+    public QTable getQTable() {
+      return qTable;
+    }
+
+    public int getIterations() {
+      return iterations;
+    }
+
+    /**
+     * Returns the largest change of a Q value in the last iteration
+     *
+     * @return the residual, which is at most the tolerance if the values have converged
+     */
+    public double getResidual() {
+      return residual;
+    }
+  }
+}
@@ -0,0 +1,416 @@
+package tools;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.logging.*;
+
+/**
+ * A batch of {@link LearningEnvironment} instances that are stepped in lockstep.
+ *
+ * <p>
+ * Each call to {@link #step(int[])} performs one action on every environment,
+ * waits for the environments to settle, and returns the next states, the
+ * rewards and the done flags of the N transitions. The environments are
+ * stepped concurrently on a fixed thread pool. An environment whose episode is
+ * done (because it reached a goal state, or because its episode reached the
+ * maximum number of steps) is reset automatically, so that {@link #getStates()}
+ * always holds the states to act from in the next step.
+ * </p>
+ * <p>
+ * A pipelined batch steps its environments from the calling thread instead,
+ * over their asynchronous API: the actions of all the environments are sent
+ * together with their Status reads (see
+ * {@link LearningEnvironment#performActionAndReadAsync(int)}), and the
+ * environments that have not settled yet are polled together, with the timing
+ * of a {@link StepSynchronizer}, until their states have not changed for the
+ * minimum stable time. The requests to several labs are thus in flight at the
+ * same time without a thread per lab. The resets of a pipelined batch run on
+ * the calling thread.
+ * </p>
+ */
+public class VectorizedEnvironment implements AutoCloseable {
+
+  private static final Logger LOGGER = Logger.getLogger(VectorizedEnvironment.class.getName());
+
+  /**
+   * Resets an environment at the beginning of an episode
+   */
+  @FunctionalInterface
+  public interface Resetter {
+
+    /**
+     * Resets an environment
+     *
+     * @param index the index of the environment in the batch
+     * @param env the environment
+     * @return the state of the environment after the reset
+     */
+    int reset(int index, LearningEnvironment env);
+  }
+
+  /**
+   * Computes the reward of a transition
+   */
+  @FunctionalInterface
+  public interface TransitionReward {
+
+    /**
+     * Computes the reward of a transition
+     *
+     * @param index the index of the environment in the batch
+     * @param env the environment
+     * @param state the state before the transition
+     * @param nextState the state after the transition
+     * @return the reward
+     */
+    double reward(int index, LearningEnvironment env, int state, int nextState);
+  }
+
+  /**
+   * The outcome of a step of all the environments of the batch.
+   * <p>
+   * The arrays are indexed by the environment and are reused by the next step.
+   * </p>
+   */
+  public static final class StepResult {
+
+    /**
+     * The states after the transitions, before any automatic reset
+     */
+    public final int[] nextStates;
+
+    /**
+     * The rewards of the transitions
+     */
+    public final double[] rewards;
+
+    /**
+     * Whether the episode of each environment ended with the transition
+     */
+    public final boolean[] dones;
+
+    private StepResult(int size) {
+      this.nextStates = new int[size];
+      this.rewards = new double[size];
+      this.dones = new boolean[size];
+    }
+  }
+
+  private final List<LearningEnvironment> environments;
+  private final Resetter resetter;
+  private final TransitionReward transitionReward;
+  private final IntPredicate isGoalState;
+  private final int maxEpisodeSteps;
+
+  /**
+   * The threads that step the environments, or null if the batch is pipelined
+   */
+  private final ExecutorService executor;
+  private final List<Callable<Void>> chunks = new ArrayList<>();
+
+  private final int[] states;
+  private final int[] episodeSteps;
+  private final StepResult result;
+  private int[] actions;
+
+  /**
+   * The pending reads and the times since which the states have been stable,
+   * used by the steps of a pipelined batch
+   */
+  private final List<CompletableFuture<Integer>> reads;
+  private final long[] stableSince;
+
+  /**
+   * Constructs a batch of environments
+   *
+   * @param environments the environments, which must not be shared with other batches
+   * @param resetter resets an environment at the beginning of an episode
+   * @param transitionReward computes the reward of a transition
+   * @param isGoalState tests whether a state ends an episode
+   * @param maxEpisodeSteps the maximum number of steps of an episode
+   * @param threads the number of threads that step the environments
+   */
+  public VectorizedEnvironment(List<LearningEnvironment> environments, Resetter resetter,
+    TransitionReward transitionReward, IntPredicate isGoalState, int maxEpisodeSteps, int threads) {
+    this(environments, resetter, transitionReward, isGoalState, maxEpisodeSteps, Math.max(1, threads), false);
+  }
+
+  /**
+   * Constructs a pipelined batch of environments, which are stepped from the
+   * calling thread over their asynchronous API
+   *
+   * @param environments the environments, which must not be shared with other batches
+   * @param resetter resets an environment at the beginning of an episode
+   * @param transitionReward computes the reward of a transition
+   * @param isGoalState tests whether a state ends an episode
+   * @param maxEpisodeSteps the maximum number of steps of an episode
+   */
+  public VectorizedEnvironment(List<LearningEnvironment> environments, Resetter resetter,
+    TransitionReward transitionReward, IntPredicate isGoalState, int maxEpisodeSteps) {
+    this(environments, resetter, transitionReward, isGoalState, maxEpisodeSteps, 0, true);
+  }
+
+  private VectorizedEnvironment(List<LearningEnvironment> environments, Resetter resetter,
+    TransitionReward transitionReward, IntPredicate isGoalState, int maxEpisodeSteps, int threads,
+    boolean pipelined) {
+    if (environments.isEmpty()) {
+      throw new IllegalArgumentException("A batch needs at least one environment");
+    }
+
+    this.environments = new ArrayList<>(environments);
+    this.resetter = resetter;
+    this.transitionReward = transitionReward;
+    this.isGoalState = isGoalState;
+    this.maxEpisodeSteps = maxEpisodeSteps;
+
+    int size = environments.size();
+    this.states = new int[size];
+    this.episodeSteps = new int[size];
+    this.result = new StepResult(size);
+
+    if (pipelined) {
+      this.executor = null;
+      this.reads = new ArrayList<>(Collections.nCopies(size, null));
+      this.stableSince = new long[size];
+      return;
+    }
+    this.reads = null;
+    this.stableSince = null;
+
+    int threadCount = Math.min(threads, size);
+    this.executor = Executors.newFixedThreadPool(threadCount);
+
+    // split the environments into one contiguous chunk per thread
+    for (int t = 0; t < threadCount; t++) {
+      int from = t * size / threadCount;
+      int to = (t + 1) * size / threadCount;
+      chunks.add(() -> {
+        for (int i = from; i < to; i++) {
+          stepEnvironment(i);
+        }
+        return null;
+      });
+    }
+  }
+
+  /**
+   * Returns whether the environments are stepped from the calling thread over
+   * their asynchronous API
+   *
+   * @return true if the batch is pipelined
+   */
+  public boolean isPipelined() {
+    return executor == null;
+  }
+
+  /**
+   * Returns the number of environments of the batch
+   *
+   * @return the number of environments
+   */
+  public int size() {
+    return environments.size();
+  }
+
+  /**
+   * Returns an environment of the batch
+   *
+   * @param index the index of the environment
+   * @return the environment
+   */
+  public LearningEnvironment getEnvironment(int index) {
+    return environments.get(index);
+  }
+
+  /**
+   * Returns the states to act from in the next step. The array is updated by
+   * each step and must not be modified.
+   *
+   * @return the current state of each environment
+   */
+  public int[] getStates() {
+    return states;
+  }
+
+  /**
+   * Resets all the environments of the batch
+   *
+   * @return the state of each environment after the reset
+   */
+  public int[] reset() {
+    runOnAll(i -> {
+      states[i] = resetter.reset(i, environments.get(i));
+      episodeSteps[i] = 0;
+    });
+    return states;
+  }
+
+  /**
+   * Performs one action on each environment of the batch
+   *
+   * @param actions the action to perform on each environment
+   * @return the outcome of the step
+   */
+  public StepResult step(int[] actions) {
+    if (actions.length != environments.size()) {
+      throw new IllegalArgumentException("Expected " + environments.size() + " actions but got " + actions.length);
+    }
+    this.actions = actions;
+    if (isPipelined()) {
+      stepPipelined();
+    } else {
+      invokeAll(chunks);
+    }
+    return result;
+  }
+
+  private void stepEnvironment(int i) {
+    LearningEnvironment env = environments.get(i);
+
+    env.performAction(actions[i]);
+    completeStep(i, env.awaitSettled());
+  }
+
+  /**
+   * Sends the actions and the Status reads of all the environments, and polls the
+   * environments until they have settled
+   */
+  private void stepPipelined() {
+    int size = environments.size();
+    for (int i = 0; i < size; i++) {
+      reads.set(i, environments.get(i).performActionAndReadAsync(actions[i]));
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < size; i++) {
+      result.nextStates[i] = join(reads.get(i));
+      stableSince[i] = start;
+    }
+
+    long deadline = start + StepSynchronizer.DEFAULT_DEADLINE_MILLIS * 1_000_000L;
+    long minStableNanos = StepSynchronizer.DEFAULT_MIN_STABLE_MILLIS * 1_000_000L;
+    long pollMillis = StepSynchronizer.DEFAULT_INITIAL_POLL_MILLIS;
+
+    while (true) {
+      long now = System.nanoTime();
+      if (now >= deadline) {
+        LOGGER.warning("The states did not settle within " + StepSynchronizer.DEFAULT_DEADLINE_MILLIS + " ms");
+        break;
+      }
+
+      long remainingMillis = Math.max(1, (deadline - now) / 1_000_000L);
+      boolean settled = true;
+      for (int i = 0; i < size; i++) {
+        settled &= now - stableSince[i] >= minStableNanos;
+      }
+      if (settled) {
+        break;
+      }
+
+      try {
+        Thread.sleep(Math.min(pollMillis, remainingMillis));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Stepping the environments was interrupted");
+      }
+      pollMillis = Math.min(pollMillis * 2, StepSynchronizer.DEFAULT_MAX_POLL_MILLIS);
+
+      // read the states of the environments that have not settled yet together
+      for (int i = 0; i < size; i++) {
+        reads.set(i, now - stableSince[i] < minStableNanos ? environments.get(i).readCurrentStateAsync() : null);
+      }
+      for (int i = 0; i < size; i++) {
+        if (reads.get(i) != null) {
+          int polledState = join(reads.get(i));
+          if (polledState != result.nextStates[i]) {
+            // the state is still changing, restart the stability window and poll faster
+            result.nextStates[i] = polledState;
+            stableSince[i] = System.nanoTime();
+            pollMillis = StepSynchronizer.DEFAULT_INITIAL_POLL_MILLIS;
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < size; i++) {
+      completeStep(i, result.nextStates[i]);
+    }
+  }
+
+  /**
+   * Records the transition of an environment, and resets the environment if its episode is done
+   *
+   * @param i the index of the environment
+   * @param nextState the settled state after the action
+   */
+  private void completeStep(int i, int nextState) {
+    LearningEnvironment env = environments.get(i);
+
+    result.nextStates[i] = nextState;
+    result.rewards[i] = transitionReward.reward(i, env, states[i], nextState);
+    episodeSteps[i]++;
+
+    boolean done = isGoalState.test(nextState) || episodeSteps[i] >= maxEpisodeSteps;
+    result.dones[i] = done;
+
+    if (done) {
+      states[i] = resetter.reset(i, env);
+      episodeSteps[i] = 0;
+    } else {
+      states[i] = nextState;
+    }
+  }
+
+  private void runOnAll(IntConsumer task) {
+    if (isPipelined()) {
+      for (int i = 0; i < environments.size(); i++) {
+        task.accept(i);
+      }
+      return;
+    }
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < environments.size(); i++) {
+      int index = i;
+      tasks.add(() -> {
+        task.accept(index);
+        return null;
+      });
+    }
+    invokeAll(tasks);
+  }
+
+  private void invokeAll(List<Callable<Void>> tasks) {
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Stepping the environments was interrupted");
+    } catch (ExecutionException e) {
+      LOGGER.severe("Stepping the environments failed: " + e.getCause());
+      throw new IllegalStateException("Stepping the environments failed", e.getCause());
+    }
+  }
+
+  private int join(CompletableFuture<Integer> read) {
+    try {
+      return read.join();
+    } catch (CompletionException e) {
+      LOGGER.severe("Stepping the environments failed: " + e.getCause());
+      throw new IllegalStateException("Stepping the environments failed", e.getCause());
+    }
+  }
+
+  /**
+   * Stops the threads of the batch
+   */
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
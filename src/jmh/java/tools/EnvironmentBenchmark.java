@@ -0,0 +1,76 @@
+package tools;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the state and action space lookups of a {@link LearningEnvironment}.
+ *
+ * <p>
+ * The benchmarks run offline against a {@link SimulatedLab}, which shares the
+ * state codec, the compatible state index and the applicable action tables
+ * with a {@link Lab}, so the lookups measured here are the ones a lab runs.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+
+  private SimulatedLab lab;
+  private List<Object> goalDescription;
+  private List<Object> substateDescription;
+  private int[] values;
+  private int state;
+
+  @Setup
+  public void setUp() {
+    lab = new SimulatedLab(42);
+    goalDescription = Arrays.asList(2, 3);
+    substateDescription = Arrays.asList(2, null, true, null, false, null, 1);
+    values = new int[] {2, 3, 1, 0, 1, 1, 2};
+    state = lab.getStateCodec().encode(values);
+  }
+
+  @Benchmark
+  public List<Integer> getCompatibleStatesOfGoal() {
+    return lab.getCompatibleStates(goalDescription);
+  }
+
+  @Benchmark
+  public List<Integer> getCompatibleStatesOfSubstate() {
+    return lab.getCompatibleStates(substateDescription);
+  }
+
+  @Benchmark
+  public List<Integer> getApplicableActions() {
+    return lab.getApplicableActions(state);
+  }
+
+  @Benchmark
+  public int[] getApplicableActionIds() {
+    return lab.getApplicableActionIds(state);
+  }
+
+  /**
+   * The lookup of the index of a state from its axis values, as done by each
+   * read of the current state
+   */
+  @Benchmark
+  public int encodeState() {
+    return lab.getStateCodec().encode(values);
+  }
+
+  /**
+   * A complete read of the current state, including the observation it publishes
+   */
+  @Benchmark
+  public int readCurrentState() {
+    return lab.readCurrentState();
+  }
+}
@@ -0,0 +1,90 @@
+package tools;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the action selection and of the update of {@link QLearner}.
+ *
+ * <p>
+ * The Q table is filled with random values, so that the greedy selections do
+ * not always return the first applicable action. Each benchmark runs for each
+ * {@link QTable.Backing}. A Q-update step runs against
+ * an offline {@link SimulatedLab}.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QLearnerBenchmark {
+
+  private static final int GOAL_Z1 = 2;
+  private static final int GOAL_Z2 = 3;
+  private static final double ALPHA = 0.8;
+  private static final double GAMMA = 0.9;
+  private static final double EPSILON = 0.1;
+  private static final int REWARD = 100;
+
+  private SimulatedLab lab;
+  @Param({"DOUBLE", "FLOAT", "OFF_HEAP"})
+  private QTable.Backing backing;
+
+  private QTable qTable;
+  private Random random;
+  private int state;
+  private long applicableActions;
+
+  @Setup
+  public void setUp() {
+    lab = new SimulatedLab(42);
+    random = new Random(42);
+    qTable = QTable.create(backing, lab.getStateCount(), lab.getActionCount());
+    for (int s = 0; s < qTable.getStateCount(); s++) {
+      for (int action = 0; action < qTable.getActionCount(); action++) {
+        qTable.set(s, action, random.nextDouble());
+      }
+    }
+    state = lab.readCurrentState();
+    applicableActions = lab.getApplicableActionMask(state);
+  }
+
+  @Benchmark
+  public int chooseAction() {
+    return QLearner.chooseAction(qTable, state, applicableActions, EPSILON, random);
+  }
+
+  @Benchmark
+  public int getBestAction() {
+    return QLearner.getBestAction(qTable, state, applicableActions);
+  }
+
+  @Benchmark
+  public double getMaxQ() {
+    return QLearner.getMaxQ(qTable, state, applicableActions);
+  }
+
+  /**
+   * One step of the training loop: choose an action, perform it, observe the
+   * settled state, compute the reward and update the Q table
+   */
+  @Benchmark
+  public double updateStep() {
+    int action = QLearner.chooseAction(qTable, state, lab.getApplicableActionMask(state), EPSILON, random);
+    lab.performAction(action);
+    lab.awaitSettled();
+
+    Observation observation = lab.getLastObservation();
+    int nextState = observation.getStateCode();
+    double reward = TrainingEngine.reward(lab.getStateCodec(), state, nextState, GOAL_Z1, GOAL_Z2, REWARD);
+    double maxQNext = QLearner.getMaxQ(qTable, nextState, lab.getApplicableActionMask(nextState));
+
+    qTable.add(state, action, ALPHA * (reward + GAMMA * maxQNext - qTable.get(state, action)));
+    state = nextState;
+    return qTable.get(state, action);
+  }
+}
@@ -0,0 +1,87 @@
+package tools;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the lookups of a {@link SparseQTable} that stores the rows of
+ * a million or more visited states, out of a state space of 2^40 packed codes.
+ *
+ * <p>
+ * The footprint of the table is printed when the table has been filled, and
+ * the lookups are compared with the ones of a dense {@link QTable} of the same
+ * number of rows.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SparseQTableBenchmark {
+
+  private static final int ACTIONS = 8;
+  private static final int LOOKUPS = 1 << 16;
+  private static final long APPLICABLE = 0b01010101L;
+
+  @Param({"1000000", "4000000"})
+  private int visitedStates;
+
+  private SparseQTable sparse;
+  private QTable dense;
+  private long[] codes;
+  private int[] denseStates;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    sparse = new SparseQTable(Integer.MAX_VALUE, ACTIONS);
+    dense = QTable.create(QTable.Backing.DOUBLE, visitedStates, ACTIONS);
+
+    long[] visited = new long[visitedStates];
+    for (int i = 0; i < visitedStates; i++) {
+      visited[i] = random.nextLong() & ((1L << 40) - 1);
+      for (int action = 0; action < ACTIONS; action++) {
+        sparse.set(visited[i], action, random.nextDouble());
+        dense.set(i, action, random.nextDouble());
+      }
+    }
+
+    codes = new long[LOOKUPS];
+    denseStates = new int[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; i++) {
+      int index = random.nextInt(visitedStates);
+      codes[i] = visited[index];
+      denseStates[i] = index;
+    }
+
+    System.out.printf("%nSparse Q table: %d rows, %.1f MB (%.1f bytes per row); dense rows alone: %.1f MB%n",
+      sparse.getStoredStateCount(), sparse.getFootprintBytes() / 1e6,
+      (double) sparse.getFootprintBytes() / sparse.getStoredStateCount(),
+      (double) visitedStates * ACTIONS * Double.BYTES / 1e6);
+  }
+
+  @Benchmark
+  public double sparseRowMax() {
+    return sparse.rowMax(codes[next++ & (LOOKUPS - 1)], APPLICABLE);
+  }
+
+  @Benchmark
+  public void sparseUpdate() {
+    sparse.add(codes[next++ & (LOOKUPS - 1)], 2, 0.1);
+  }
+
+  @Benchmark
+  public double denseRowMax() {
+    return dense.rowMax(denseStates[next++ & (LOOKUPS - 1)], APPLICABLE);
+  }
+
+  @Benchmark
+  public void denseUpdate() {
+    dense.add(denseStates[next++ & (LOOKUPS - 1)], 2, 0.1);
+  }
+}
@@ -0,0 +1,46 @@
+package tools;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the steps of a {@link TrainingEngine} on a {@link SimulatedLab}.
+ *
+ * <p>
+ * Run with the GC profiler, the normalized allocation rate of {@link #step()}
+ * shows that a warmed-up step does not allocate.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrainingEngineBenchmark {
+
+  private TrainingEngine engine;
+
+  @Setup
+  public void setUp() {
+    SimulatedLab lab = new SimulatedLab(42);
+    engine = new TrainingEngine(lab, new SplittableRandom(42), new LearningMetrics());
+    engine.configure(QTable.create(QTable.Backing.DOUBLE, lab.getStateCount(), lab.getActionCount()), new int[] {2, 3},
+      0.8, 0.9, 0.1, 100);
+    engine.beginEpisode();
+  }
+
+  /**
+   * One step of an episode, starting a new episode whenever the goal is reached
+   */
+  @Benchmark
+  public int step() {
+    if (engine.step()) {
+      engine.endEpisode(true);
+      engine.beginEpisode();
+    }
+    return engine.getState();
+  }
+}
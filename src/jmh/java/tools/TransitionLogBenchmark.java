@@ -0,0 +1,108 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of streaming a {@link TransitionLog} through its memory-mapped
+ * {@link TransitionLog.Reader}.
+ *
+ * <p>
+ * The setup checks the round trip of the format before measuring: the records
+ * of a {@link TransitionLog.Writer} are read back field by field, a partly
+ * written trailing record is truncated when the log is reopened for appending,
+ * and a log of another state codec is rejected. The benchmark fails if any of
+ * these checks fails.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionLogBenchmark {
+
+  private static final int RECORDS = 1 << 20;
+  private static final int CODEC_VERSION = StateCodec.LAB.getVersion();
+
+  private Path file;
+  private TransitionLog.Reader reader;
+
+  @Setup
+  public void setUp() throws IOException {
+    file = Files.createTempFile("transitions", ".log");
+    Files.delete(file);
+
+    try (TransitionLog.Writer writer = new TransitionLog.Writer(file, CODEC_VERSION)) {
+      for (int i = 0; i < RECORDS; i++) {
+        append(writer, i);
+      }
+    }
+
+    // a record that was only partly written when the process stopped
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap(new byte[TransitionLog.RECORD_BYTES / 2]));
+    }
+    try (TransitionLog.Writer writer = new TransitionLog.Writer(file, CODEC_VERSION)) {
+      check(writer.getRecordCount() == RECORDS, "the partly written record was not dropped");
+      append(writer, RECORDS);
+    }
+    check(Files.size(file) == TransitionLog.HEADER_BYTES + (long) (RECORDS + 1) * TransitionLog.RECORD_BYTES,
+      "the log has a size of " + Files.size(file) + " bytes");
+
+    reader = new TransitionLog.Reader(file);
+    check(reader.getCodecVersion() == CODEC_VERSION, "the codec version is " + reader.getCodecVersion());
+    check(reader.getRecordCount() == RECORDS + 1, "the log has " + reader.getRecordCount() + " records");
+    for (int i = 0; reader.next(); i++) {
+      check(reader.getTimestamp() == 1000L * i && reader.getState() == i % 1024 && reader.getAction() == i % 8
+        && reader.getNextState() == (i * 7) % 1024 && reader.getZ1Lux() == i % 500 && reader.getZ2Lux() == 250.5f
+        && reader.getSunshineLux() == 1000f && reader.getReward() == -i % 3
+        && (i % 2 == 0 ? Float.isNaN(reader.getEnergyCost()) : reader.getEnergyCost() == 0.25f)
+        && reader.getSource() == source(i), "record " + i + " was not read back");
+    }
+
+    try {
+      new TransitionLog.Writer(file, CODEC_VERSION + 1).close();
+      check(false, "a log of another state codec was opened");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  private static void append(TransitionLog.Writer writer, int i) {
+    writer.append(1000L * i, i % 1024, i % 8, (i * 7) % 1024, i % 500, 250.5, 1000, -i % 3,
+      i % 2 == 0 ? Double.NaN : 0.25, source(i));
+  }
+
+  private static int source(int i) {
+    return i == RECORDS ? TransitionLog.SOURCE_CONTROL : TransitionLog.SOURCE_SIMULATION;
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new IllegalStateException("Transition log round trip failed: " + message);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS + 1)
+  public long read() {
+    long sum = 0;
+    reader.rewind();
+    while (reader.next()) {
+      sum += reader.getState() + reader.getAction() + reader.getNextState() + reader.getSource();
+    }
+    return sum;
+  }
+}